@@ -0,0 +1,184 @@
+package com.example.hybridmind.data
+
+import android.content.Context
+import android.os.BatteryManager
+import android.os.Build
+import android.os.PowerManager
+
+/**
+ * Chooses the backend for each request: Gemini or the on-device model.
+ *
+ * The policy weighs measured latency (rolling p50/p95 time-to-first-token and decode speed per
+ * backend from [LatencyTracker]) against prompt length, image presence and device state
+ * (battery level, charging, power-save mode and thermal status). Every decision is logged and
+ * kept in a short ring buffer for inspection.
+ *
+ * Only one on-device model is loaded at a time, so the local choice is the loaded model; when
+ * the policy would rather use the lighter model the decision records that preference.
+ */
+class BackendRouter(
+    private val context: Context,
+    private val latencyTracker: LatencyTracker
+) {
+
+    enum class Backend { GEMINI, LOCAL }
+
+    data class DeviceState(
+        val batteryPercent: Int,
+        val isCharging: Boolean,
+        val isPowerSaveMode: Boolean,
+        val thermalStatus: Int // PowerManager.THERMAL_STATUS_*, 0 (none) below API 29
+    )
+
+    data class Decision(
+        val backend: Backend,
+        val localModel: String?, // Model that serves a LOCAL decision
+        val preferredLocalModel: String?, // Set when the policy would rather run another local model
+        val reason: String,
+        val promptTokens: Int,
+        val hasImage: Boolean,
+        val deviceState: DeviceState,
+        val timestamp: Long = System.currentTimeMillis()
+    )
+
+    private val powerManager = context.getSystemService(Context.POWER_SERVICE) as PowerManager
+    private val batteryManager = context.getSystemService(Context.BATTERY_SERVICE) as BatteryManager
+
+    private val recentDecisions = ArrayDeque<Decision>()
+
+    /**
+     * @param onlineAllowed the network is up and the session may use Gemini
+     * @param geminiAvailable Gemini's circuit breaker lets the request through
+     * @param localModel name of the loaded on-device model, or null if none is loaded
+     * @param localSupportsVision the loaded engine can encode images
+     */
+    fun route(
+        onlineAllowed: Boolean,
+        geminiAvailable: Boolean,
+        localModel: String?,
+        localSupportsVision: Boolean,
+        prompt: String,
+        hasImage: Boolean
+    ): Decision {
+        val promptTokens = ContextWindowManager.promptTokens(prompt, hasImage)
+        val device = readDeviceState()
+        val preferredLocal = preferredLocalModel(localModel, device)
+
+        fun decide(backend: Backend, reason: String) = Decision(
+            backend = backend,
+            localModel = if (backend == Backend.LOCAL) localModel else null,
+            preferredLocalModel = if (backend == Backend.LOCAL && preferredLocal != localModel) preferredLocal else null,
+            reason = reason,
+            promptTokens = promptTokens,
+            hasImage = hasImage,
+            deviceState = device
+        )
+
+        val decision = when {
+            !onlineAllowed -> decide(Backend.LOCAL, "offline or private session")
+            // Never send to Gemini without a breaker permit, even when no local model is loaded
+            !geminiAvailable -> decide(Backend.LOCAL, "Gemini circuit open")
+            localModel == null -> decide(Backend.GEMINI, "no on-device model loaded")
+            hasImage && !localSupportsVision -> decide(Backend.GEMINI, "on-device engine is text-only")
+            device.thermalStatus >= PowerManager.THERMAL_STATUS_SEVERE ->
+                decide(Backend.GEMINI, "device is hot (thermal ${device.thermalStatus})")
+            device.isPowerSaveMode -> decide(Backend.GEMINI, "power-save mode")
+            !device.isCharging && device.batteryPercent <= LOW_BATTERY_PERCENT ->
+                decide(Backend.GEMINI, "battery at ${device.batteryPercent}%")
+            promptTokens <= SHORT_PROMPT_TOKENS && !hasImage && geminiIsHealthy() ->
+                decide(Backend.GEMINI, "short prompt on a healthy link")
+            else -> compareExpectedLatency(localModel, promptTokens, hasImage, ::decide)
+        }
+
+        record(decision)
+        return decision
+    }
+
+    fun recentDecisions(): List<Decision> = synchronized(recentDecisions) { recentDecisions.toList() }
+
+    // Estimated time to a full reply on each backend; unknown stats keep the cloud default
+    private fun compareExpectedLatency(
+        localModel: String,
+        promptTokens: Int,
+        hasImage: Boolean,
+        decide: (Backend, String) -> Decision
+    ): Decision {
+        val geminiTtft = latencyTracker.timeToFirstTokenPercentile(LatencyTracker.GEMINI, 50)
+        val geminiTtftP95 = latencyTracker.timeToFirstTokenPercentile(LatencyTracker.GEMINI, 95)
+        val localTtft = latencyTracker.timeToFirstTokenPercentile(localModel, 50)
+        val localTps = latencyTracker.medianTokensPerSecond(localModel)
+        val geminiTps = latencyTracker.medianTokensPerSecond(LatencyTracker.GEMINI)
+
+        if (geminiTtft == null || geminiTtftP95 == null || localTtft == null || localTps == null || localTps <= 0) {
+            return decide(Backend.GEMINI, "not enough latency samples yet")
+        }
+
+        // Local prefill grows with the prompt; the vision encoder adds a fixed cost
+        val localPrefillPenalty = promptTokens * LOCAL_PREFILL_MS_PER_TOKEN + if (hasImage) LOCAL_IMAGE_PENALTY_MS else 0
+        val localExpected = localTtft + localPrefillPenalty + EXPECTED_REPLY_TOKENS * 1000 / localTps
+        // Judge the cloud by its tail, since a stall is what the user notices
+        val geminiExpected = geminiTtftP95 + EXPECTED_REPLY_TOKENS * 1000 / (geminiTps ?: DEFAULT_GEMINI_TPS).coerceAtLeast(1)
+
+        return if (localExpected < geminiExpected) {
+            decide(Backend.LOCAL, "local ~${localExpected} ms vs Gemini p95 ~${geminiExpected} ms")
+        } else {
+            decide(Backend.GEMINI, "Gemini p95 ~${geminiExpected} ms vs local ~${localExpected} ms")
+        }
+    }
+
+    private fun geminiIsHealthy(): Boolean {
+        val p95 = latencyTracker.timeToFirstTokenPercentile(LatencyTracker.GEMINI, 95) ?: return true
+        return p95 <= HEALTHY_GEMINI_TTFT_MS
+    }
+
+    // Under load prefer the lighter model; the larger one heats the GPU more per token
+    private fun preferredLocalModel(localModel: String?, device: DeviceState): String? {
+        if (localModel == null) return null
+        val stressed = device.thermalStatus >= PowerManager.THERMAL_STATUS_MODERATE ||
+            (!device.isCharging && device.batteryPercent <= MODERATE_BATTERY_PERCENT)
+        return if (stressed) LIGHT_LOCAL_MODEL else localModel
+    }
+
+    private fun readDeviceState(): DeviceState {
+        val thermal = if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            powerManager.currentThermalStatus
+        } else {
+            0
+        }
+        return DeviceState(
+            batteryPercent = batteryManager.getIntProperty(BatteryManager.BATTERY_PROPERTY_CAPACITY),
+            isCharging = batteryManager.isCharging,
+            isPowerSaveMode = powerManager.isPowerSaveMode,
+            thermalStatus = thermal
+        )
+    }
+
+    private fun record(decision: Decision) {
+        android.util.Log.d(
+            "BackendRouter",
+            "→ ${decision.backend}${decision.localModel?.let { " ($it)" } ?: ""}: ${decision.reason} " +
+                "[prompt=${decision.promptTokens} tok, image=${decision.hasImage}, " +
+                "battery=${decision.deviceState.batteryPercent}%, thermal=${decision.deviceState.thermalStatus}]"
+        )
+        synchronized(recentDecisions) {
+            recentDecisions.addLast(decision)
+            if (recentDecisions.size > MAX_RECENT_DECISIONS) recentDecisions.removeFirst()
+        }
+    }
+
+    companion object {
+        private const val LIGHT_LOCAL_MODEL = "gemma-2b"
+
+        private const val LOW_BATTERY_PERCENT = 20
+        private const val MODERATE_BATTERY_PERCENT = 40
+        private const val SHORT_PROMPT_TOKENS = 64
+        private const val HEALTHY_GEMINI_TTFT_MS = 2_000L
+
+        private const val EXPECTED_REPLY_TOKENS = 256L
+        private const val LOCAL_PREFILL_MS_PER_TOKEN = 2L
+        private const val LOCAL_IMAGE_PENALTY_MS = 1_500L
+        private const val DEFAULT_GEMINI_TPS = 80L
+
+        private const val MAX_RECENT_DECISIONS = 50
+    }
+}
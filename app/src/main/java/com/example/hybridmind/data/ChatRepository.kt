@@ -1,107 +1,102 @@
 package com.example.hybridmind.data
 
 import android.content.Context
+import androidx.paging.Pager
+import androidx.paging.PagingConfig
+import androidx.paging.PagingData
 import com.example.hybridmind.core.NetworkMonitor
 import com.example.hybridmind.data.cloud.FirestoreRepository
 import com.example.hybridmind.data.local.AppDatabase
 import com.example.hybridmind.data.local.ChatSession
+import com.example.hybridmind.data.local.InferenceMetric
+import com.example.hybridmind.data.local.MessageSearchResult
 import com.example.hybridmind.data.local.Message as ChatMessage  // Use alias for database Message
-import com.google.ai.client.generativeai.GenerativeModel
-import com.google.ai.edge.litertlm.Backend
 import com.google.ai.edge.litertlm.Content
-import com.google.ai.edge.litertlm.Conversation
-import com.google.ai.edge.litertlm.ConversationConfig
-import com.google.ai.edge.litertlm.Engine
-import com.google.ai.edge.litertlm.EngineConfig
 import com.google.ai.edge.litertlm.Message as LiteRTMessage  // Use alias for LiteRT-LM Message
 import com.google.ai.edge.litertlm.MessageCallback
-import com.google.ai.edge.litertlm.SamplerConfig
-import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.CancellationException
 import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.ExperimentalCoroutinesApi
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.NonCancellable
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitAll
+import kotlinx.coroutines.coroutineScope
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.channels.awaitClose
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.buffer
+import kotlinx.coroutines.flow.callbackFlow
+import kotlinx.coroutines.flow.catch
+import kotlinx.coroutines.flow.channelFlow
+import kotlinx.coroutines.flow.distinctUntilChanged
+import kotlinx.coroutines.flow.emitAll
+import kotlinx.coroutines.flow.emptyFlow
+import kotlinx.coroutines.flow.filterIsInstance
 import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.flow.flatMapLatest
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.flowOf
+import kotlinx.coroutines.flow.flowOn
+import kotlinx.coroutines.flow.last
+import kotlinx.coroutines.flow.onCompletion
+import kotlinx.coroutines.flow.onEach
+import kotlinx.coroutines.delay
 import kotlinx.coroutines.launch
 import kotlinx.coroutines.withContext
-import kotlinx.coroutines.cancel
-import kotlin.coroutines.resume
-import kotlin.coroutines.resumeWithException
-import kotlin.coroutines.suspendCoroutine
+import kotlin.math.ln
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
 import java.util.UUID
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicReference
 import com.google.firebase.auth.FirebaseAuth
 
 class ChatRepository(
     private val context: Context,
     private val networkMonitor: NetworkMonitor,
     private val database: AppDatabase,
+    private val inferenceHost: InferenceHost,
     private val geminiApiKey: String
 ) {
-    private var engine: Engine? = null
-    private var conversation: Conversation? = null  // Reusable conversation (replaces session)
     private val chatDao = database.chatDao()
     private val firestoreRepository = FirestoreRepository()
-    private val syncScope = CoroutineScope(Dispatchers.IO)
+    private val syncScope = inferenceHost.scope
+    private val contextWindowManager = ContextWindowManager()
+    private val geminiChatCache = GeminiChatCache(geminiApiKey)
+    private val imagePayloadCache = ImagePayloadCache(context)
+    private val visionContextCache = VisionContextCache()
+    private val inferencePreferences = InferencePreferences(context)
+    private val latencyTracker = LatencyTracker()
+    private val backendRouter = BackendRouter(context, latencyTracker)
+    private val geminiBreaker = CircuitBreaker("gemini")
+    private val responseCache = ResponseCache(database.responseCacheDao())
+    private val inferenceMetrics = InferenceMetrics(database.inferenceMetricDao())
 
-
-    // Initialize LiteRT-LM Engine (call this after model download)
+    // Initialize LiteRT-LM Engine (call this after model download). A no-op when the same model
+    // is already loaded, so Activity recreation costs no reload.
     suspend fun initializeOfflineModel(modelPath: String) {
-        withContext(Dispatchers.IO) {
-            try {
-                android.util.Log.d("ChatRepository", "Starting LiteRT-LM initialization for: $modelPath")
-                
-                // 1. Validate file exists
-                val file = java.io.File(modelPath)
-                if (!file.exists()) {
-                    val errorMsg = "Model file not found at: $modelPath"
-                    android.util.Log.e("ChatRepository", errorMsg)
-                    throw Exception(errorMsg)
-                }
-                
-                // 2. Validate file size
-                val fileSizeMB = file.length() / (1024 * 1024)
-                android.util.Log.d("ChatRepository", "Model file size: $fileSizeMB MB")
-                
-                if (file.length() < 1024 * 1024 * 100) {
-                    throw Exception("Model file too small ($fileSizeMB MB). Expected at least 100MB.")
-                }
-                
-                // 3. Configure Engine (matching Google AI Edge Gallery)
-                android.util.Log.d("ChatRepository", "Creating Engine configuration...")
-                val engineConfig = EngineConfig(
-                    modelPath = modelPath,
-                    backend = Backend.GPU,  // GPU for main LLM
-                    visionBackend = Backend.GPU,  // GPU for vision (MUST be GPU for Gemma 3n)
-                    maxNumTokens = 2048,
-                    cacheDir = context.getExternalFilesDir(null)?.absolutePath
-                )
-                
-                // 4. Initialize Engine
-                android.util.Log.d("ChatRepository", "Initializing Engine...")
-                engine = Engine(engineConfig)
-                engine?.initialize()
-                android.util.Log.d("ChatRepository", "✓ Engine initialized")
-                
-                // 5. Create Conversation (reusable session)
-                android.util.Log.d("ChatRepository", "Creating Conversation...")
-                conversation = engine?.createConversation(
-                    ConversationConfig(
-                        samplerConfig = SamplerConfig(
-                            topK = 40,
-                            topP = 0.95,
-                            temperature = 0.8
-                        )
-                    )
-                )
-                
-                android.util.Log.d("ChatRepository", "✓ LiteRT-LM initialized successfully!")
-                
-            } catch (e: Exception) {
-                val errorMsg = "Failed to initialize offline model: ${e.message}"
-                android.util.Log.e("ChatRepository", errorMsg, e)
-                e.printStackTrace()
-                throw Exception(errorMsg, e)
-            }
-        }
+        inferenceHost.load(modelPath)
+    }
+
+    /**
+     * Switches the on-device model while the current one keeps answering. Throws if the device
+     * lacks the memory to hold both for the switch.
+     */
+    suspend fun switchOfflineModel(modelPath: String) {
+        inferenceHost.swap(modelPath)
     }
 
+    // Same as initializeOfflineModel without waiting; follow progress on offlineModelState
+    fun initializeOfflineModelInBackground(modelPath: String) {
+        inferenceHost.loadInBackground(modelPath)
+    }
+
+    val offlineModelState: StateFlow<InferenceHost.EngineState>
+        get() = inferenceHost.state
+
     private fun saveImageToInternalStorage(imageData: ByteArray): String {
         val filename = "img_${System.currentTimeMillis()}.jpg"
         val file = java.io.File(context.filesDir, filename)
@@ -119,7 +114,7 @@ class ChatRepository(
         
         // Check session existence
         val currentUserId = FirebaseAuth.getInstance().currentUser?.uid ?: throw Exception("Not signed in")
-        val session = chatDao.getAllSessions(currentUserId).find { it.id == sessionId }
+        val session = chatDao.getSessionById(sessionId, currentUserId)
             ?: throw Exception("Session not found")
         
         val isOfflineSession = session.is_offline_only
@@ -157,52 +152,380 @@ class ChatRepository(
         return userMsg
     }
 
-    suspend fun generateResponse(
+    /**
+     * Generates a reply and streams it as it is decoded. The completed reply is saved to Room
+     * and synced before [GenerationEvent.Complete] is emitted.
+     *
+     * Requests go through the [InferenceScheduler]: one generation per engine at a time,
+     * interactive before background, and an identical request already in flight is joined
+     * rather than started again.
+     */
+    fun generateStream(
         sessionId: String,
-        userMessage: String,
+        prompt: String,
+        imageData: ByteArray? = null,
+        priority: InferenceScheduler.Priority = InferenceScheduler.Priority.INTERACTIVE
+    ): Flow<GenerationEvent> {
+        val requestKey = "$sessionId|${imageData?.contentHashCode() ?: 0}|$prompt"
+        return inferenceHost.scheduler.dedupe(
+            requestKey,
+            produceGeneration(sessionId, prompt, imageData, priority)
+        )
+    }
+
+    /**
+     * Starts [generateStream] in the application scope and returns a handle the UI can stop.
+     */
+    fun startGeneration(
+        sessionId: String,
+        prompt: String,
         imageData: ByteArray? = null
-    ): String {
+    ): GenerationHandle {
+        return GenerationHandle(inferenceHost.scope, generateStream(sessionId, prompt, imageData))
+    }
+
+    private fun produceGeneration(
+        sessionId: String,
+        prompt: String,
+        imageData: ByteArray?,
+        priority: InferenceScheduler.Priority
+    ): Flow<GenerationEvent> = flow {
         val isOnline = networkMonitor.isOnline.first()
-        val currentUserId = FirebaseAuth.getInstance().currentUser?.uid ?: return "Error: Not signed in"
-        
-        val session = chatDao.getAllSessions(currentUserId).find { it.id == sessionId } ?: return "Error: Session not found"
+        val currentUserId = FirebaseAuth.getInstance().currentUser?.uid
+        if (currentUserId == null) {
+            emit(GenerationEvent.Complete("Error: Not signed in", 0))
+            return@flow
+        }
+
+        val session = chatDao.getSessionById(sessionId, currentUserId)
+        if (session == null) {
+            emit(GenerationEvent.Complete("Error: Session not found", 0))
+            return@flow
+        }
         val isOfflineSession = session.is_offline_only
 
-        val modelResponse = withContext(Dispatchers.IO) {
-            if (isOnline && !isOfflineSession) { // Only use online if session allows it
-                // Online: Try Gemini first
-                try {
-                    generateWithGemini(sessionId, userMessage, imageData)
-                } catch (e: Exception) {
+        val onlineAllowed = isOnline && !isOfflineSession // Only use online if session allows it
+        val geminiPermit = if (onlineAllowed) geminiBreaker.tryAcquire() else null
+        try {
+            if (geminiPermit == null) {
+                // Only the on-device model can answer: wait out a launch-time load still in progress
+                inferenceHost.awaitReady()
+                if (onlineAllowed && !inferenceHost.isReady()) {
+                    // The circuit refuses Gemini and there is no local engine either. Answer at once
+                    // instead of making a call the breaker would never hear about
+                    val reply = "Error: Gemini is temporarily unavailable. Try again in a moment, or download the offline model."
+                    saveModelResponse(
+                        session = session,
+                        userMessage = prompt,
+                        modelResponse = reply,
+                        isOnline = isOnline,
+                        messageId = UUID.randomUUID().toString(),
+                        timestamp = System.currentTimeMillis()
+                    )
+                    emit(GenerationEvent.Complete(reply, 0))
+                    return@flow
+                }
+            }
+            val decision = backendRouter.route(
+                onlineAllowed = onlineAllowed,
+                geminiAvailable = geminiPermit != null,
+                localModel = if (inferenceHost.isReady()) inferenceHost.loadedModelName else null,
+                localSupportsVision = inferenceHost.visionCapable,
+                prompt = prompt,
+                hasImage = imageData != null
+            )
+            val useOnline = decision.backend == BackendRouter.Backend.GEMINI
+            if (!useOnline) geminiPermit?.let { geminiBreaker.onAbandoned(it) }
+            val servedBy = AtomicReference(
+                if (useOnline) InferenceScheduler.Lane.GEMINI else InferenceScheduler.Lane.LOCAL
+            )
+
+            // Exact repeats are answered from the response cache; private sessions never touch it
+            val imageHash = imageData?.let { visionContextCache.hashOf(it) }
+            val contextHash = if (isOfflineSession) null else trailingContextHash(sessionId)
+            val cachedResponse = contextHash
+                ?.let { responseCacheKey(servedBy.get(), prompt, imageHash, it) }
+                ?.let { responseCache.get(it) }
+            if (cachedResponse != null) {
+                android.util.Log.d("ChatRepository", "Response cache hit for $sessionId (hit rate ${"%.2f".format(responseCache.stats().hitRate)})")
+                val startTime = System.currentTimeMillis()
+                emit(GenerationEvent.FirstToken(0))
+                emit(GenerationEvent.Chunk(cachedResponse))
+                emit(GenerationEvent.Progress(1, cachedResponse.length, 0))
+                saveModelResponse(
+                    session = session,
+                    userMessage = prompt,
+                    modelResponse = cachedResponse,
+                    isOnline = isOnline,
+                    messageId = UUID.randomUUID().toString(),
+                    timestamp = System.currentTimeMillis()
+                )
+                // Neither backend saw this turn; the Gemini chat cache notices from the Room rows
+                inferenceHost.invalidateConversation(sessionId)
+                emit(GenerationEvent.Complete(cachedResponse, System.currentTimeMillis() - startTime))
+                return@flow
+            }
+
+            val scheduler = inferenceHost.scheduler
+            var generationFailed = false
+            // When each backend actually sent the request; first token minus this is prefill time
+            val requestSentAt = InferenceScheduler.Lane.values().associateWith { AtomicLong(0) }
+            val geminiSentAt = requestSentAt.getValue(InferenceScheduler.Lane.GEMINI)
+            val localSentAt = requestSentAt.getValue(InferenceScheduler.Lane.LOCAL)
+            val chunks = if (useOnline && inferencePreferences.hedgedModeEnabled && inferenceHost.isReady()) {
+                // Hedged: Gemini first, on-device model if Gemini is slow to start
+                hedgedChunks(sessionId, prompt, imageData, priority, geminiPermit, servedBy, requestSentAt)
+                    .catch { e ->
+                        // The winning leg failed mid-answer: end the turn like the unhedged path,
+                        // with what arrived followed by the error
+                        android.util.Log.e("ChatRepository", "Hedged generation failed on ${servedBy.get()}: ${e.message}")
+                        generationFailed = true
+                        emit("Error: Generation failed. ${e.message}")
+                    }
+            } else if (useOnline) {
+                // Online: Try Gemini first, falling back to the on-device model if it fails before
+                // saying anything
+                var receivedText = false
+                scheduler.schedule(
+                    InferenceScheduler.Lane.GEMINI,
+                    priority,
+                    streamWithGemini(sessionId, prompt, imageData, geminiSentAt)
+                        .onEach { receivedText = true }
+                        .onCompletion { cause -> settleGeminiPermit(geminiPermit, cause) }
+                ).catch { e ->
                     android.util.Log.e("ChatRepository", "Gemini failed: ${e.message}")
-                    "Error: Online generation failed. ${e.message}"
+                    if (!receivedText && inferenceHost.isReady()) {
+                        servedBy.set(InferenceScheduler.Lane.LOCAL)
+                        emitAll(scheduler.schedule(InferenceScheduler.Lane.LOCAL, priority, streamWithMediaPipe(sessionId, prompt, imageData, localSentAt)))
+                    } else {
+                        generationFailed = true
+                        emit("Error: Online generation failed. ${e.message}")
+                    }
+                }
+            } else {
+                // Offline: Use LiteRT-LM
+                scheduler.schedule(InferenceScheduler.Lane.LOCAL, priority, streamWithMediaPipe(sessionId, prompt, imageData, localSentAt))
+            }
+
+            val startTime = System.currentTimeMillis()
+            val response = StringBuilder()
+            var chunkCount = 0
+
+            // The partial reply is written under a fixed id so a crash mid-answer keeps what arrived
+            val modelMsgId = UUID.randomUUID().toString()
+            var modelTimestamp = 0L
+            var lastPartialSave = 0L
+
+            try {
+                chunks.collect { chunk ->
+                    val now = System.currentTimeMillis()
+                    if (chunkCount == 0) {
+                        modelTimestamp = now
+                        emit(GenerationEvent.FirstToken(now - startTime))
+                    }
+                    chunkCount++
+                    response.append(chunk)
+                    emit(GenerationEvent.Chunk(chunk))
+                    emit(GenerationEvent.Progress(chunkCount, response.length, now - startTime))
+
+                    if (now - lastPartialSave >= PARTIAL_SAVE_DEBOUNCE_MS) {
+                        savePartialResponse(modelMsgId, sessionId, response.toString(), modelTimestamp, isFirstSave = lastPartialSave == 0L)
+                        lastPartialSave = now
+                    }
                 }
+            } catch (e: CancellationException) {
+                // Stopped mid-answer: keep what already arrived, even though we are being cancelled
+                if (response.isNotEmpty()) {
+                    withContext(NonCancellable) {
+                        saveModelResponse(
+                            session = session,
+                            userMessage = prompt,
+                            modelResponse = response.toString(),
+                            isOnline = isOnline,
+                            messageId = modelMsgId,
+                            timestamp = modelTimestamp
+                        )
+                    }
+                }
+                throw e
+            }
+
+            val modelResponse = response.toString()
+            saveModelResponse(
+                session = session,
+                userMessage = prompt,
+                modelResponse = modelResponse,
+                isOnline = isOnline,
+                messageId = modelMsgId,
+                timestamp = if (modelTimestamp > 0) modelTimestamp else System.currentTimeMillis()
+            )
+            if (servedBy.get() == InferenceScheduler.Lane.LOCAL) {
+                contextWindowManager.recordTurn(sessionId, prompt, modelResponse, imageData != null)
             } else {
-                // Offline: Use MediaPipe
-                generateWithMediaPipe(sessionId, userMessage, imageData)
+                // The pooled on-device conversation missed this turn and no longer matches Room
+                inferenceHost.invalidateConversation(sessionId)
+                // The Gemini chat holds exactly what was just saved; a failed turn already dropped it
+                if (!generationFailed) {
+                    geminiChatCache.markSynced(sessionId, chatDao.getHistoryMarker(sessionId))
+                }
+            }
+            if (!generationFailed) {
+                recordGenerationMetrics(
+                    lane = servedBy.get(),
+                    prompt = prompt,
+                    hasImage = imageData != null,
+                    response = modelResponse,
+                    startedAt = startTime,
+                    requestSentAt = requestSentAt.getValue(servedBy.get()).get(),
+                    firstTokenAt = modelTimestamp
+                )
             }
+            if (contextHash != null && !generationFailed && modelResponse.isNotBlank()) {
+                responseCacheKey(servedBy.get(), prompt, imageHash, contextHash)?.let { key ->
+                    responseCache.put(key, cacheModelId(servedBy.get()), modelResponse)
+                }
+            }
+            emit(GenerationEvent.Complete(modelResponse, System.currentTimeMillis() - startTime))
+        } finally {
+            // Every exit that did not settle the permit (cancelled while queued for the lane,
+            // an error before the call, a cache hit) gives it back; a settled permit ignores this
+            geminiPermit?.let { geminiBreaker.onAbandoned(it) }
+        }
+    }.flowOn(Dispatchers.IO)
+
+    /**
+     * Hash of the last turns before the prompt being answered, so a cached reply is only reused
+     * in the same conversational context.
+     */
+    private suspend fun trailingContextHash(sessionId: String): String {
+        val recent = chatDao.getRecentMessages(sessionId, RESPONSE_CACHE_CONTEXT_MESSAGES + 1)
+            .filter { it.role == "user" || it.role == "model" }
+        // Newest first; the newest row is the prompt itself
+        val prior = if (recent.firstOrNull()?.role == "user") recent.drop(1) else recent
+        return ResponseCache.contextHash(
+            prior.take(RESPONSE_CACHE_CONTEXT_MESSAGES).reversed().map { ContextWindowManager.Turn(it.role, it.content) }
+        )
+    }
+
+    // Null when the backend's model is unknown (no on-device model loaded)
+    private fun responseCacheKey(
+        lane: InferenceScheduler.Lane,
+        prompt: String,
+        imageHash: String?,
+        contextHash: String
+    ): String? {
+        val (modelId, samplerSettings) = if (lane == InferenceScheduler.Lane.GEMINI) {
+            geminiChatCache.model.modelName to GEMINI_SAMPLER_SETTINGS
+        } else {
+            (inferenceHost.modelFingerprint ?: return null) to InferenceHost.SAMPLER_SETTINGS
+        }
+        return ResponseCache.keyFor(prompt, imageHash, contextHash, modelId, samplerSettings)
+    }
+
+    private fun cacheModelId(lane: InferenceScheduler.Lane): String {
+        return if (lane == InferenceScheduler.Lane.GEMINI) geminiChatCache.model.modelName else inferenceHost.loadedModelName ?: "local"
+    }
+
+    /**
+     * Stores the speed of a finished generation and feeds decode speed to the router.
+     */
+    private suspend fun recordGenerationMetrics(
+        lane: InferenceScheduler.Lane,
+        prompt: String,
+        hasImage: Boolean,
+        response: String,
+        startedAt: Long,
+        requestSentAt: Long,
+        firstTokenAt: Long
+    ) {
+        if (firstTokenAt == 0L || requestSentAt == 0L) return
+        val now = System.currentTimeMillis()
+        val outputTokens = ContextWindowManager.estimateTokens(response)
+        val decodeMs = now - firstTokenAt
+        val tokensPerSecond = if (decodeMs > 0) outputTokens * 1000.0 / decodeMs else 0.0
+        val isGemini = lane == InferenceScheduler.Lane.GEMINI
+        val modelFile = if (isGemini) {
+            geminiChatCache.model.modelName
+        } else {
+            inferenceHost.loadedModelPath?.let { java.io.File(it).name } ?: return
         }
 
-        // Save model response to Room
+        // A reply this short says little about throughput
+        if (outputTokens >= MIN_TOKENS_FOR_DECODE_SPEED && decodeMs > 0) {
+            latencyTracker.recordTokensPerSecond(
+                if (isGemini) LatencyTracker.GEMINI else inferenceHost.loadedModelName ?: return,
+                tokensPerSecond
+            )
+        }
+
+        inferenceMetrics.record(
+            InferenceMetric(
+                backend = if (isGemini) "gemini" else "local",
+                model_file = modelFile,
+                engine_backend = if (isGemini) null else inferenceHost.engineBackend?.name,
+                prompt_tokens = ContextWindowManager.promptTokens(prompt, hasImage),
+                output_tokens = outputTokens,
+                prefill_ms = firstTokenAt - requestSentAt,
+                ttft_ms = firstTokenAt - startedAt,
+                decode_tokens_per_sec = tokensPerSecond,
+                has_image = hasImage,
+                timestamp = now
+            )
+        )
+    }
+
+    suspend fun generateResponse(
+        sessionId: String,
+        userMessage: String,
+        imageData: ByteArray? = null
+    ): String {
+        return generateStream(sessionId, userMessage, imageData)
+            .filterIsInstance<GenerationEvent.Complete>()
+            .last()
+            .fullText
+    }
+
+    private suspend fun savePartialResponse(
+        messageId: String,
+        sessionId: String,
+        partialResponse: String,
+        timestamp: Long,
+        isFirstSave: Boolean
+    ) {
+        if (isFirstSave) {
+            chatDao.insertMessage(
+                ChatMessage(
+                    id = messageId,
+                    session_id = sessionId,
+                    role = "model",
+                    content = partialResponse,
+                    timestamp = timestamp
+                )
+            )
+        } else {
+            chatDao.updateMessageContent(messageId, partialResponse)
+        }
+    }
+
+    private suspend fun saveModelResponse(
+        session: ChatSession,
+        userMessage: String,
+        modelResponse: String,
+        isOnline: Boolean,
+        messageId: String = UUID.randomUUID().toString(),
+        timestamp: Long = System.currentTimeMillis()
+    ) {
+        val sessionId = session.id
+        val isOfflineSession = session.is_offline_only
+
+        // Model response (replaces any partial reply written while streaming)
         val modelMsg = ChatMessage(
-            id = UUID.randomUUID().toString(),
+            id = messageId,
             session_id = sessionId,
             role = "model",
             content = modelResponse,
-            timestamp = System.currentTimeMillis()
+            timestamp = timestamp
         )
-        chatDao.insertMessage(modelMsg)
-
-        // Sync model response to Firestore (if online and NOT offline-only session)
-        if (isOnline && !isOfflineSession) {
-            syncScope.launch {
-                try {
-                    firestoreRepository.syncMessage(sessionId, modelMsg, isOfflineSession)
-                } catch (e: Exception) {
-                    // Silently fail
-                }
-            }
-        }
 
         // Update session
         val newTitle = if (session.title == "New Chat" && userMessage.isNotBlank()) {
@@ -221,7 +544,20 @@ class ChatRepository(
             last_updated = System.currentTimeMillis(),
             is_offline_only = session.is_offline_only || !isOnline
         )
-        chatDao.updateSession(updatedSession)
+
+        // Save both in one transaction so a crash cannot leave a reply without its session update
+        chatDao.commitTurn(listOf(modelMsg), updatedSession)
+
+        // Sync model response to Firestore (if online and NOT offline-only session)
+        if (isOnline && !isOfflineSession) {
+            syncScope.launch {
+                try {
+                    firestoreRepository.syncMessage(sessionId, modelMsg, isOfflineSession)
+                } catch (e: Exception) {
+                    // Silently fail
+                }
+            }
+        }
 
         // Sync session to Firestore (if NOT offline-only)
         if (!updatedSession.is_offline_only) {
@@ -233,8 +569,6 @@ class ChatRepository(
                 }
             }
         }
-
-        return modelResponse
     }
     
     // Deprecated but kept for compatibility if needed, calling new functions
@@ -248,8 +582,186 @@ class ChatRepository(
         return generateResponse(sessionId, userMessage, imageData)
     }
 
-    @Suppress("UNUSED_PARAMETER")
-    private suspend fun generateWithGemini(sessionId: String, prompt: String, imageData: ByteArray?): String {
+    /**
+     * Latency-hedged generation: starts Gemini, and if it has not produced a first token within
+     * an adaptive deadline (or fails first) starts the on-device model too. Whichever streams
+     * first is kept and the other is cancelled. [servedBy] is set to the winner.
+     */
+    private fun hedgedChunks(
+        sessionId: String,
+        prompt: String,
+        imageData: ByteArray?,
+        priority: InferenceScheduler.Priority,
+        geminiPermit: CircuitBreaker.Permit?,
+        servedBy: AtomicReference<InferenceScheduler.Lane>,
+        requestSentAt: Map<InferenceScheduler.Lane, AtomicLong>
+    ): Flow<String> = channelFlow {
+        val scheduler = inferenceHost.scheduler
+        val geminiSentAt = requestSentAt.getValue(InferenceScheduler.Lane.GEMINI)
+        val localSentAt = requestSentAt.getValue(InferenceScheduler.Lane.LOCAL)
+        val winner = AtomicReference<InferenceScheduler.Lane?>(null)
+        val localStarted = AtomicBoolean(false)
+        var localJob: Job? = null
+        var geminiJob: Job? = null
+        var hedgeTimer: Job? = null
+
+        fun claim(lane: InferenceScheduler.Lane): Boolean {
+            if (winner.compareAndSet(null, lane)) {
+                android.util.Log.d("ChatRepository", "Hedge won by $lane")
+                servedBy.set(lane)
+                hedgeTimer?.cancel()
+                if (lane == InferenceScheduler.Lane.GEMINI) localJob?.cancel() else geminiJob?.cancel()
+            }
+            return winner.get() == lane
+        }
+
+        fun startLocal() {
+            if (!localStarted.compareAndSet(false, true)) return
+            android.util.Log.d("ChatRepository", "Gemini slow or failing, starting on-device hedge")
+            localJob = launch {
+                scheduler.schedule(InferenceScheduler.Lane.LOCAL, priority, streamWithMediaPipe(sessionId, prompt, imageData, localSentAt))
+                    .collect { chunk ->
+                        // Losing leg stops itself even if the winner could not cancel it in time
+                        if (claim(InferenceScheduler.Lane.LOCAL)) send(chunk) else throw CancellationException("Hedge lost")
+                    }
+            }
+        }
+
+        geminiJob = launch {
+            try {
+                scheduler.schedule(
+                    InferenceScheduler.Lane.GEMINI,
+                    priority,
+                    streamWithGemini(sessionId, prompt, imageData, geminiSentAt)
+                        .onCompletion { cause -> settleGeminiPermit(geminiPermit, cause) }
+                ).collect { chunk ->
+                        if (claim(InferenceScheduler.Lane.GEMINI)) send(chunk) else throw CancellationException("Hedge lost")
+                    }
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                // Before any text arrived a failure just hands over to the local model
+                if (winner.get() == InferenceScheduler.Lane.GEMINI) throw e
+                startLocal()
+            }
+        }
+
+        hedgeTimer = launch {
+            delay(latencyTracker.hedgeDeadlineMs())
+            if (winner.get() == null) startLocal()
+        }
+    }
+
+    private fun streamWithGemini(
+        sessionId: String,
+        prompt: String,
+        imageData: ByteArray?,
+        requestSentAt: AtomicLong
+    ): Flow<String> = channelFlow {
+        val requestStart = System.currentTimeMillis()
+        // 1. Reuse the session's chat while it still matches Room; the prompt being answered
+        // is already saved, so the chat should reflect every row but that one
+        val roomHistory = chatDao.getHistoryMarker(sessionId, skipNewest = 1)
+        val chat = geminiChatCache.get(sessionId, roomHistory)
+            ?: geminiChatCache.model.startChat(buildGeminiHistory(sessionId)).also {
+                geminiChatCache.put(sessionId, it, roomHistory)
+            }
+        
+        // 2. Use Gemini 2.5 Flash (latest model), streaming chunks as they arrive
+        android.util.Log.d("ChatRepository", "Attempting streaming generation with gemini-2.5-flash")
+
+        // The chat's history already carries an image it has seen, so it is attached only on
+        // the first turn about it
+        val imageHash = imageData?.let { visionContextCache.hashOf(it) }
+        val imagePayload = if (imageData != null && !visionContextCache.hasSent(chat, imageHash!!)) {
+            imagePayloadCache.encode(imageData)
+        } else {
+            null
+        }
+        val content = com.google.ai.client.generativeai.type.content("user") {
+            imagePayload?.let { blob(ImagePayloadCache.MIME_TYPE, it) }
+            text(prompt)
+        }
+
+        val receivedText = AtomicBoolean(false)
+        // A request that hangs (captive portal, dead zone) fails instead of waiting forever
+        val firstTokenTimer = launch {
+            delay(GEMINI_FIRST_TOKEN_TIMEOUT_MS)
+            if (!receivedText.get()) throw GeminiTimeoutException(GEMINI_FIRST_TOKEN_TIMEOUT_MS)
+        }
+        requestSentAt.set(System.currentTimeMillis())
+        chat.sendMessageStream(content).collect { response ->
+            val chunk = response.text
+            if (!chunk.isNullOrEmpty()) {
+                if (receivedText.compareAndSet(false, true)) {
+                    firstTokenTimer.cancel()
+                    latencyTracker.recordTimeToFirstToken(LatencyTracker.GEMINI, System.currentTimeMillis() - requestStart)
+                }
+                send(chunk)
+            }
+        }
+        firstTokenTimer.cancel()
+        
+        if (!receivedText.get()) {
+            throw Exception("Empty response from model")
+        }
+
+        // The chat appended this prompt and reply; the caller marks it synced once Room has the
+        // reply row too. Gemini is stateless and the chat re-sends its history every turn, so the photo stays there only
+        // as a small copy; follow-ups no longer upload it at full size.
+        if (imagePayload != null) {
+            val promptIndex = chat.history.size - 2
+            val thumbnail = imagePayloadCache.encode(imageData!!, ImagePayloadCache.HISTORY_MAX_DIMENSION)
+            if (promptIndex >= 0 && thumbnail != null) {
+                chat.history[promptIndex] = com.google.ai.client.generativeai.type.content("user") {
+                    blob(ImagePayloadCache.MIME_TYPE, thumbnail)
+                    text(prompt)
+                }
+            }
+        }
+        imageHash?.let { visionContextCache.markSent(chat, it) }
+    }.catch { e ->
+        android.util.Log.e("ChatRepository", "Gemini failed: ${e.message}")
+        // A failed turn is saved to Room as an error reply but never reached the chat
+        geminiChatCache.invalidate(sessionId)
+        throw Exception("Gemini generation failed: ${e.message}", e)
+    }
+
+    // Reports how a Gemini call ended to the circuit breaker
+    private fun settleGeminiPermit(permit: CircuitBreaker.Permit?, cause: Throwable?) {
+        if (permit == null) return
+        when {
+            cause == null -> geminiBreaker.onSuccess(permit)
+            cause is CancellationException -> geminiBreaker.onAbandoned(permit)
+            else -> {
+                val failure = classifyGeminiFailure(cause)
+                if (failure != null) geminiBreaker.onFailure(permit, failure) else geminiBreaker.onSuccess(permit)
+            }
+        }
+    }
+
+    /**
+     * Maps a Gemini error to a breaker failure, or null when the service answered and the
+     * request itself was at fault (blocked prompt, bad argument).
+     */
+    private fun classifyGeminiFailure(error: Throwable): CircuitBreaker.Failure? {
+        for (cause in generateSequence(error) { it.cause }) {
+            when (cause) {
+                is GeminiTimeoutException,
+                is com.google.ai.client.generativeai.type.RequestTimeoutException,
+                is java.net.SocketTimeoutException -> return CircuitBreaker.Failure.TIMEOUT
+                is com.google.ai.client.generativeai.type.QuotaExceededException -> return CircuitBreaker.Failure.QUOTA
+                is com.google.ai.client.generativeai.type.ServerException -> return CircuitBreaker.Failure.SERVER
+                is java.io.IOException -> return CircuitBreaker.Failure.NETWORK
+            }
+        }
+        return null
+    }
+
+    /**
+     * Rebuilds a session's Gemini history from Room. Only needed when [geminiChatCache] misses.
+     */
+    private suspend fun buildGeminiHistory(sessionId: String): List<com.google.ai.client.generativeai.type.Content> {
         // 1. Reconstruct and Sanitize History
         val historyMessages = chatDao.getMessagesForSession(sessionId).filter { it.role != "system" }
         
@@ -275,10 +787,10 @@ class ChatRepository(
                  validHistory.add(com.google.ai.client.generativeai.type.content(normalizedRole) {
                     if (msg.image_path != null) {
                         try {
-                            val options = android.graphics.BitmapFactory.Options()
-                            options.inSampleSize = 2 
-                            val bitmap = android.graphics.BitmapFactory.decodeFile(msg.image_path, options)
-                            if (bitmap != null) image(bitmap)
+                            // Downscaled and encoded once, then sent as the cached JPEG bytes;
+                            // history only needs the small copy
+                            val payload = imagePayloadCache.get(msg.image_path, ImagePayloadCache.HISTORY_MAX_DIMENSION)
+                            if (payload != null) blob(ImagePayloadCache.MIME_TYPE, payload)
                         } catch (e: Exception) {
                             android.util.Log.e("ChatRepository", "Failed to load image for history: ${e.message}")
                         }
@@ -300,96 +812,120 @@ class ChatRepository(
             validHistory.removeAt(validHistory.size - 1)
         }
         
-        val initialHistory = validHistory
-        
-        
-        // 2. Use Gemini 2.5 Flash (latest model)
-        try {
-            android.util.Log.d("ChatRepository", "Attempting generation with gemini-2.5-flash")
-            
-            val model = GenerativeModel(
-                modelName = "gemini-2.5-flash", 
-                apiKey = geminiApiKey
-            )
-            
-            val chat = model.startChat(initialHistory)
+        return validHistory
+    }
 
-            val content = com.google.ai.client.generativeai.type.content("user") {
-                if (imageData != null) {
-                    val bitmap = android.graphics.BitmapFactory.decodeByteArray(imageData, 0, imageData.size)
-                    image(bitmap)
-                }
-                text(prompt)
-            }
+    /**
+     * Prefill for rebuilding the conversation of [sessionId] when it is not in the pool, read from
+     * Room. The current prompt is already saved but is sent separately, so a trailing user
+     * message is dropped. The result is fitted to the token budget by [contextWindowManager].
+     */
+    private suspend fun loadOfflineHistory(
+        sessionId: String,
+        pendingPromptTokens: Int
+    ): InferenceHost.ConversationSeed {
+        val history = loadOfflineTurns(sessionId)
+        val window = contextWindowManager.fit(sessionId, history, pendingPromptTokens)
+        return InferenceHost.ConversationSeed(
+            systemMessage = window.summary?.let { LiteRTMessage.of(it) },
+            initialMessages = window.turns.map { toLiteRTMessage(it.role, it.content) }
+        )
+    }
 
-            val response = chat.sendMessage(content)
-            val textResponse = response.text
-            
-            if (!textResponse.isNullOrBlank()) {
-                return textResponse
-            } else {
-                throw Exception("Empty response from model")
-            }
+    private suspend fun loadOfflineTurns(sessionId: String): List<ContextWindowManager.Turn> {
+        val history = chatDao.getMessagesForSession(sessionId)
+            .filter { it.role == "user" || it.role == "model" }
+        val priorTurns = if (history.lastOrNull()?.role == "user") history.dropLast(1) else history
+        return priorTurns.map { ContextWindowManager.Turn(it.role, it.content) }
+    }
 
-        } catch (e: Exception) {
-            android.util.Log.e("ChatRepository", "Gemini failed: ${e.message}")
-            throw Exception("Gemini generation failed: ${e.message}")
-        }
+    private fun toLiteRTMessage(role: String, content: String): LiteRTMessage {
+        return if (role == "user") LiteRTMessage.user(content) else LiteRTMessage.model(content)
     }
 
+    private fun streamWithMediaPipe(
+        sessionId: String,
+        prompt: String,
+        imageData: ByteArray?,
+        requestSentAt: AtomicLong
+    ): Flow<String> = callbackFlow {
+        // The vision encoder is loaded on the first image; this drops pooled conversations,
+        // so it has to happen before this session's conversation is looked up
+        val hasImage = imageData != null && inferenceHost.attachVision()
+        if (imageData != null && !hasImage) {
+            android.util.Log.w("ChatRepository", "On-device engine is text-only, answering without the image")
+        }
+
+        // Rebuild with a fitted window rather than let a long chat overflow the engine
+        if (contextWindowManager.wouldOverflow(sessionId, prompt, hasImage)) {
+            android.util.Log.d("ChatRepository", "Context budget exhausted for $sessionId, compacting")
+            inferenceHost.conversationPool.remove(sessionId)
+        }
+        val conv = inferenceHost.conversationFor(sessionId) {
+            loadOfflineHistory(sessionId, ContextWindowManager.promptTokens(prompt, hasImage))
+        }
+        if (conv == null) {
+            send("Offline model not initialized. Please download the model first.")
+            close()
+            return@callbackFlow
+        }
 
+        // Build contents list (Google AI Edge Gallery pattern)
+        val contents = mutableListOf<Content>()
 
-    private suspend fun generateWithMediaPipe(sessionId: String, prompt: String, imageData: ByteArray? = null): String {
-        val conv = conversation 
-            ?: return "Offline model not initialized. Please download the model first."
+        // Add image first if present (as PNG bytes), unless this conversation has already
+        // encoded it; follow-up questions about the same photo then cost text-only latency
+        val imageHash = imageData?.let { visionContextCache.hashOf(it) }
+        if (imageData != null && hasImage && !visionContextCache.hasSent(conv, imageHash!!)) {
+            android.util.Log.d("ChatRepository", "Adding image (${imageData.size} bytes)")
+            contents.add(Content.ImageBytes(imageData))
+        }
 
-        return withContext(Dispatchers.IO) {
-            suspendCoroutine { continuation ->
-                try {
-                    // Build contents list (Google AI Edge Gallery pattern)
-                    val contents = mutableListOf<Content>()
-                    
-                    // Add image first if present (as PNG bytes)
-                    if (imageData != null) {
-                        android.util.Log.d("ChatRepository", "Adding image (${imageData.size} bytes)")
-                        contents.add(Content.ImageBytes(imageData))
-                    }
-                    
-                    // Add text prompt
-                    if (prompt.trim().isNotEmpty()) {
-                        contents.add(Content.Text(prompt))
-                    }
-                    
-                    val fullResponse = StringBuilder()
-                    
-                    // Send message with callback (streaming support)
-                    conv.sendMessageAsync(
-                        LiteRTMessage.of(contents),
-                        object : MessageCallback {
-                            override fun onMessage(message: LiteRTMessage) {
-                                // Append streaming chunks
-                                fullResponse.append(message.toString())
-                                android.util.Log.d("ChatRepository", "Chunk received: ${message.toString().take(50)}...")
-                            }
-                            
-                            override fun onDone() {
-                                android.util.Log.d("ChatRepository", "✓ Response complete (${fullResponse.length} chars)")
-                                continuation.resume(fullResponse.toString())
-                            }
-                            
-                            override fun onError(throwable: Throwable) {
-                                android.util.Log.e("ChatRepository", "Error: ${throwable.message}", throwable)
-                                continuation.resumeWithException(throwable)
-                            }
+        // Add text prompt
+        if (prompt.trim().isNotEmpty()) {
+            contents.add(Content.Text(prompt))
+        }
+
+        // Forward each chunk downstream as soon as LiteRT-LM decodes it
+        val finished = AtomicBoolean(false) // Set from the LiteRT-LM callback thread
+        val firstChunk = AtomicBoolean(true)
+        val requestStart = System.currentTimeMillis()
+        requestSentAt.set(requestStart)
+        conv.sendMessageAsync(
+            LiteRTMessage.of(contents),
+            object : MessageCallback {
+                override fun onMessage(message: LiteRTMessage) {
+                    if (firstChunk.compareAndSet(true, false)) {
+                        inferenceHost.loadedModelName?.let { model ->
+                            latencyTracker.recordTimeToFirstToken(model, System.currentTimeMillis() - requestStart)
                         }
-                    )
-                } catch (e: Exception) {
-                    android.util.Log.e("ChatRepository", "Error: ${e.message}", e)
-                    continuation.resumeWithException(e)
+                    }
+                    trySend(message.toString())
+                }
+
+                override fun onDone() {
+                    android.util.Log.d("ChatRepository", "✓ Response complete")
+                    finished.set(true)
+                    if (hasImage) imageHash?.let { visionContextCache.markSent(conv, it) }
+                    close()
                 }
+
+                override fun onError(throwable: Throwable) {
+                    android.util.Log.e("ChatRepository", "Error: ${throwable.message}", throwable)
+                    finished.set(true)
+                    close(throwable)
+                }
+            }
+        )
+
+        awaitClose {
+            // Collector went away mid-answer: stop native decoding so the engine is free at once
+            if (!finished.get()) {
+                android.util.Log.d("ChatRepository", "Cancelling in-flight LiteRT-LM generation")
+                conv.cancelProcess()
             }
         }
-    }
+    }.buffer(Channel.UNLIMITED) // Never drop chunks if the UI collects slowly
 
     suspend fun createNewSession(title: String, isOffline: Boolean): String {
         val currentUserId = FirebaseAuth.getInstance().currentUser?.uid ?: throw IllegalStateException("User not signed in")
@@ -424,6 +960,141 @@ class ChatRepository(
         }
     }
 
+    /**
+     * Copies sessions that changed in Firestore since this device last saw them, e.g. after
+     * signing in on a new phone. Messages already in Room are kept as they are, since they carry
+     * local fields such as image paths. The whole pull lands in one transaction.
+     */
+    suspend fun pullFromCloud() {
+        val currentUserId = FirebaseAuth.getInstance().currentUser?.uid ?: return
+        if (!networkMonitor.isOnline.first()) return
+
+        withContext(Dispatchers.IO) {
+            val localUpdated = chatDao.getAllSessions(currentUserId).associate { it.id to it.last_updated }
+            val changed = firestoreRepository.fetchSessions().filter { remote ->
+                remote.last_updated > (localUpdated[remote.id] ?: Long.MIN_VALUE)
+            }
+            if (changed.isEmpty()) return@withContext
+
+            val messages = coroutineScope {
+                changed.map { session ->
+                    async {
+                        val known = chatDao.getMessageIds(session.id).toHashSet()
+                        firestoreRepository.fetchMessages(session.id).filter { it.id !in known }
+                    }
+                }.awaitAll().flatten()
+            }
+            chatDao.importSessions(changed, messages)
+
+            // Pooled on-device conversations of updated sessions no longer match Room
+            changed.forEach { inferenceHost.invalidateConversation(it.id) }
+            android.util.Log.d("ChatRepository", "Pulled ${changed.size} sessions, ${messages.size} messages")
+        }
+    }
+
+    /**
+     * A session as it changes in Room, e.g. a new title or a sync pull. Emits null once the
+     * session is deleted.
+     */
+    fun observeSession(sessionId: String): Flow<ChatSession?> {
+        val currentUserId = FirebaseAuth.getInstance().currentUser?.uid ?: return flowOf(null)
+        return chatDao.observeSessionById(sessionId, currentUserId).distinctUntilChanged()
+    }
+
+    // The most recently updated session, without loading the others
+    suspend fun getLatestSession(): ChatSession? {
+        val currentUserId = FirebaseAuth.getInstance().currentUser?.uid ?: return null
+        return withContext(Dispatchers.IO) {
+            chatDao.getLatestSession(currentUserId)
+        }
+    }
+
+    /**
+     * The user's sessions, newest first, loaded page by page. Updates when sessions change.
+     */
+    fun pagedSessions(): Flow<PagingData<ChatSession>> {
+        val currentUserId = FirebaseAuth.getInstance().currentUser?.uid ?: return emptyFlow()
+        return Pager(SESSION_PAGING_CONFIG) { chatDao.pagingSessions(currentUserId) }.flow
+    }
+
+    /**
+     * The messages of whichever session [sessionIds] last named, newest first, loaded page by
+     * page for a bottom-up list. Only the pages near the viewport are held, so long chats open
+     * as fast as short ones. Switching sessions stops the previous pager, which releases its
+     * pages and its Room observer.
+     */
+    @OptIn(ExperimentalCoroutinesApi::class)
+    fun pagedMessages(sessionIds: Flow<String?>): Flow<PagingData<ChatMessage>> {
+        return sessionIds
+            .distinctUntilChanged()
+            .flatMapLatest { sessionId ->
+                if (sessionId == null) {
+                    flowOf(PagingData.empty())
+                } else {
+                    Pager(MESSAGE_PAGING_CONFIG) { chatDao.pagingMessagesForSession(sessionId) }.flow
+                }
+            }
+    }
+
+    data class SearchResults(
+        val sessions: List<ChatSession>,
+        val messages: List<MessageSearchResult>
+    )
+
+    /**
+     * Searches session titles and message text through the full-text indices. Every word of
+     * [query] must match; the last one also matches as a prefix so results follow typing.
+     */
+    suspend fun searchHistory(query: String): SearchResults {
+        val empty = SearchResults(emptyList(), emptyList())
+        val currentUserId = FirebaseAuth.getInstance().currentUser?.uid ?: return empty
+        val matchQuery = toMatchQuery(query) ?: return empty
+        return withContext(Dispatchers.IO) {
+            // Candidates arrive newest first and the sort is stable, so ties go to newer messages
+            val ranked = chatDao.matchMessages(matchQuery, currentUserId, SEARCH_CANDIDATE_LIMIT)
+                .sortedByDescending { matchScore(it.matchinfo) }
+                .take(SEARCH_MESSAGE_LIMIT)
+                .map { it.docid }
+            val snippets = if (ranked.isEmpty()) {
+                emptyMap()
+            } else {
+                chatDao.messageSnippets(matchQuery, ranked, SNIPPET_MATCH_START, SNIPPET_MATCH_END)
+                    .associateBy { it.docid }
+            }
+            SearchResults(
+                sessions = chatDao.searchSessions(matchQuery, currentUserId, SEARCH_SESSION_LIMIT),
+                messages = ranked.mapNotNull { snippets[it] }
+            )
+        }
+    }
+
+    // TF-IDF from matchinfo 'pcnx': phrase count, column count, row count, then for each phrase
+    // and column the hits in this row, the hits in all rows and the rows with a hit
+    private fun matchScore(matchinfo: ByteArray): Double {
+        val ints = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder()).asIntBuffer()
+        val cells = ints[0] * ints[1]
+        val rows = ints[2].toDouble()
+        var score = 0.0
+        for (cell in 0 until cells) {
+            val hitsInRow = ints[3 + 3 * cell]
+            val rowsWithHit = ints[3 + 3 * cell + 2]
+            if (hitsInRow > 0 && rowsWithHit > 0) score += hitsInRow * ln(1 + rows / rowsWithHit)
+        }
+        return score
+    }
+
+    // Keeps only letters and digits, lowercased, so nothing the user types is read as FTS syntax
+    // (quotes, -, *, OR, NEAR)
+    private fun toMatchQuery(query: String): String? {
+        val terms = query.lowercase()
+            .split(Regex("[^\\p{L}\\p{N}]+"))
+            .filter { it.isNotEmpty() }
+        if (terms.isEmpty()) return null
+        // A one-letter prefix would walk a whole range of the index; it only matches as a word
+        val last = terms.last().let { if (it.length >= MIN_PREFIX_LENGTH) "$it*" else it }
+        return terms.dropLast(1).joinToString("") { "$it " } + last
+    }
+
     suspend fun getMessagesForSession(sessionId: String): List<ChatMessage> {
         return withContext(Dispatchers.IO) {
             chatDao.getMessagesForSession(sessionId)
@@ -435,15 +1106,97 @@ class ChatRepository(
         withContext(Dispatchers.IO) {
             chatDao.deleteAllSessions(currentUserId)
         }
+        // Pooled conversations would still carry the deleted history
+        inferenceHost.invalidateAllConversations()
+        contextWindowManager.clear()
+        geminiChatCache.clear()
+        imagePayloadCache.clear()
+        withContext(Dispatchers.IO) {
+            responseCache.clear()
+        }
+    }
+
+    /**
+     * How much of the on-device token budget the live conversation of [sessionId] uses, or null
+     * if it has not been built yet.
+     */
+    fun getContextBudget(sessionId: String): ContextWindowManager.ContextBudget? {
+        return contextWindowManager.getContextBudget(sessionId)
+    }
+
+    fun isHedgedModeEnabled(): Boolean = inferencePreferences.hedgedModeEnabled
+
+    fun setHedgedModeEnabled(enabled: Boolean) {
+        inferencePreferences.hedgedModeEnabled = enabled
+    }
+
+    fun getGeminiCircuitState(): CircuitBreaker.State = geminiBreaker.state()
+
+    fun getRecentRoutingDecisions(): List<BackendRouter.Decision> {
+        return backendRouter.recentDecisions()
+    }
+
+    /**
+     * TTFT, prefill and decode-speed percentiles per backend over recent generations.
+     */
+    suspend fun getInferenceMetrics(): List<InferenceMetrics.BackendSummary> {
+        return withContext(Dispatchers.IO) { inferenceMetrics.summaries() }
+    }
+
+    fun getResponseCacheStats(): ResponseCache.Stats {
+        return responseCache.stats()
+    }
+
+    fun getImageCacheStats(): ImagePayloadCache.Stats {
+        return imagePayloadCache.stats()
+    }
+
+    /**
+     * Loads the on-device vision encoder ahead of the first photo. Call when the image picker opens.
+     */
+    fun prewarmVision() {
+        inferenceHost.prewarmVision()
     }
 
     fun isOfflineModelReady(): Boolean {
-        return engine != null && conversation != null
+        return inferenceHost.isReady()
     }
 
-    fun cleanup() {
-        conversation = null
-        engine = null
-        syncScope.cancel()
+    suspend fun unloadOfflineModel() {
+        inferenceHost.unload()
+    }
+
+    companion object {
+        // Minimum gap between writes of a streaming reply to the messages table
+        private const val PARTIAL_SAVE_DEBOUNCE_MS = 500L
+        private const val MIN_TOKENS_FOR_DECODE_SPEED = 16
+        private const val GEMINI_FIRST_TOKEN_TIMEOUT_MS = 20_000L
+        private const val RESPONSE_CACHE_CONTEXT_MESSAGES = 4
+        // The Gemini model runs with its default generation config
+        private const val GEMINI_SAMPLER_SETTINGS = "default"
+
+        private const val SEARCH_SESSION_LIMIT = 10
+        private const val SEARCH_MESSAGE_LIMIT = 50
+        // Newest matches considered for ranking, bounding the work for very common terms
+        private const val SEARCH_CANDIDATE_LIMIT = 1000
+        private const val MIN_PREFIX_LENGTH = 2
+
+        // Wrap matched words in search snippets; control characters cannot occur in typed text
+        const val SNIPPET_MATCH_START = "\u0002"
+        const val SNIPPET_MATCH_END = "\u0003"
+
+        private val MESSAGE_PAGING_CONFIG = PagingConfig(
+            pageSize = 30,
+            prefetchDistance = 15,
+            initialLoadSize = 60,
+            enablePlaceholders = false
+        )
+        private val SESSION_PAGING_CONFIG = PagingConfig(
+            pageSize = 30,
+            prefetchDistance = 10,
+            enablePlaceholders = false
+        )
     }
 }
+
+private class GeminiTimeoutException(timeoutMs: Long) : Exception("No response from Gemini within ${timeoutMs} ms")
@@ -0,0 +1,166 @@
+package com.example.hybridmind.data
+
+/**
+ * Circuit breaker for a remote backend.
+ *
+ * - CLOSED: requests pass. Outcomes go into a sliding window; repeated failures or a high
+ *   failure rate open the circuit.
+ * - OPEN: requests are refused until a cooldown passes. The cooldown doubles after each failed
+ *   probe, up to a cap.
+ * - HALF_OPEN: a single probe request is let through. Success closes the circuit; failure
+ *   opens it again.
+ *
+ * Failures that mean "don't retry for a while" (quota exhausted, no route to the server) open
+ * the circuit at once. Each [Permit] carries the state epoch it was issued in, and outcomes from
+ * an earlier epoch are ignored, so requests that were already in flight when an outage began
+ * count as one failure between them.
+ */
+class CircuitBreaker(
+    private val name: String,
+    private val failureThreshold: Int = DEFAULT_FAILURE_THRESHOLD,
+    private val windowSize: Int = DEFAULT_WINDOW_SIZE,
+    private val failureRateThreshold: Double = DEFAULT_FAILURE_RATE_THRESHOLD,
+    private val baseOpenMs: Long = DEFAULT_BASE_OPEN_MS,
+    private val maxOpenMs: Long = DEFAULT_MAX_OPEN_MS,
+    private val clock: () -> Long = System::currentTimeMillis
+) {
+
+    enum class State { CLOSED, OPEN, HALF_OPEN }
+
+    enum class Failure {
+        TIMEOUT, // No first token in time
+        SERVER, // 5xx
+        NETWORK, // Connectivity claimed but the server is unreachable (dead zone)
+        QUOTA // Rate limit or quota exhausted
+    }
+
+    class Permit internal constructor(internal val epoch: Long, val isProbe: Boolean) {
+        internal var settled = false
+    }
+
+    private var state = State.CLOSED
+    private var epoch = 0L
+    private val outcomes = ArrayDeque<Boolean>() // true = failure
+    private var consecutiveFailures = 0
+    private var openedAt = 0L
+    private var openMs = baseOpenMs
+    private var probeInFlight = false
+
+    /**
+     * A permit to call the backend, or null while the circuit refuses requests. Every permit
+     * must be settled with [onSuccess], [onFailure] or [onAbandoned].
+     */
+    @Synchronized
+    fun tryAcquire(): Permit? {
+        return when (currentState()) {
+            State.CLOSED -> Permit(epoch, isProbe = false)
+            State.OPEN -> null
+            State.HALF_OPEN -> {
+                if (probeInFlight) {
+                    null
+                } else {
+                    probeInFlight = true
+                    Permit(epoch, isProbe = true)
+                }
+            }
+        }
+    }
+
+    /**
+     * The backend answered; client-side errors (a blocked prompt, say) count as answers too.
+     */
+    @Synchronized
+    fun onSuccess(permit: Permit) {
+        if (!settle(permit)) return
+        when (state) {
+            State.HALF_OPEN -> {
+                android.util.Log.i("CircuitBreaker", "$name: probe succeeded, closing")
+                transition(State.CLOSED)
+                openMs = baseOpenMs
+            }
+            State.CLOSED -> {
+                consecutiveFailures = 0
+                addOutcome(failed = false)
+            }
+            State.OPEN -> Unit
+        }
+    }
+
+    @Synchronized
+    fun onFailure(permit: Permit, failure: Failure) {
+        if (!settle(permit)) return
+        when (state) {
+            State.HALF_OPEN -> {
+                openMs = (openMs * 2).coerceAtMost(maxOpenMs)
+                open("probe failed ($failure)")
+            }
+            State.CLOSED -> {
+                consecutiveFailures++
+                addOutcome(failed = true)
+                val failureRate = outcomes.count { it }.toDouble() / outcomes.size
+                when {
+                    failure == Failure.QUOTA || failure == Failure.NETWORK -> open("$failure")
+                    consecutiveFailures >= failureThreshold -> open("$consecutiveFailures consecutive failures")
+                    outcomes.size >= MIN_SAMPLES_FOR_RATE && failureRate >= failureRateThreshold ->
+                        open("failure rate ${(failureRate * 100).toInt()}%")
+                }
+            }
+            State.OPEN -> Unit
+        }
+    }
+
+    /**
+     * The call ended without telling us anything about the backend (cancelled, or not made).
+     */
+    @Synchronized
+    fun onAbandoned(permit: Permit) {
+        settle(permit)
+    }
+
+    @Synchronized
+    fun state(): State = currentState()
+
+    // Marks the permit used; false if it was already settled or predates the current state
+    private fun settle(permit: Permit): Boolean {
+        if (permit.settled) return false
+        permit.settled = true
+        if (permit.epoch != epoch) return false
+        if (permit.isProbe) probeInFlight = false
+        return true
+    }
+
+    private fun currentState(): State {
+        if (state == State.OPEN && clock() - openedAt >= openMs) {
+            transition(State.HALF_OPEN)
+        }
+        return state
+    }
+
+    private fun open(reason: String) {
+        android.util.Log.w("CircuitBreaker", "$name: opening for ${openMs / 1000}s: $reason")
+        transition(State.OPEN)
+        openedAt = clock()
+    }
+
+    private fun transition(to: State) {
+        state = to
+        epoch++
+        probeInFlight = false
+        outcomes.clear()
+        consecutiveFailures = 0
+    }
+
+    private fun addOutcome(failed: Boolean) {
+        outcomes.addLast(failed)
+        if (outcomes.size > windowSize) outcomes.removeFirst()
+    }
+
+    companion object {
+        private const val DEFAULT_FAILURE_THRESHOLD = 3
+        private const val DEFAULT_WINDOW_SIZE = 10
+        private const val DEFAULT_FAILURE_RATE_THRESHOLD = 0.5
+        private const val MIN_SAMPLES_FOR_RATE = 4
+        private const val DEFAULT_BASE_OPEN_MS = 30_000L
+        private const val DEFAULT_MAX_OPEN_MS = 5 * 60_000L
+    }
+}
@@ -0,0 +1,152 @@
+package com.example.hybridmind.data
+
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Keeps on-device prefill inside the engine's fixed token budget.
+ *
+ * When a session's conversation is (re)built, [fit] keeps the most recent turns that fit in a
+ * sliding window and folds everything older into a short rolling summary that is passed as the
+ * system message. Usage is then tracked per session as turns are added, so the caller can
+ * rebuild the conversation before it overflows instead of letting the engine truncate it.
+ *
+ * Token counts are estimates (about four characters per token); the LiteRT-LM API does not
+ * expose its tokenizer.
+ */
+class ContextWindowManager(
+    private val maxTokens: Int = MAX_NUM_TOKENS,
+    private val reservedOutputTokens: Int = RESERVED_OUTPUT_TOKENS,
+    private val summaryTokenBudget: Int = SUMMARY_TOKEN_BUDGET
+) {
+
+    data class Turn(
+        val role: String, // "user" or "model"
+        val content: String
+    )
+
+    data class ContextWindow(
+        val summary: String?, // Rolling summary of folded turns, null when nothing was folded
+        val turns: List<Turn>
+    )
+
+    data class ContextBudget(
+        val maxTokens: Int,
+        val usedTokens: Int,
+        val summaryTokens: Int,
+        val windowTurns: Int,
+        val foldedTurns: Int
+    ) {
+        val remainingTokens: Int get() = (maxTokens - usedTokens).coerceAtLeast(0)
+    }
+
+    private val budgets = ConcurrentHashMap<String, ContextBudget>()
+
+    /**
+     * Splits [history] into a window of recent turns and a summary of the rest, leaving room
+     * for a pending prompt of [pendingPromptTokens] and the reply.
+     */
+    fun fit(sessionId: String, history: List<Turn>, pendingPromptTokens: Int = 0): ContextWindow {
+        val windowBudget = maxTokens - reservedOutputTokens - summaryTokenBudget - pendingPromptTokens
+
+        // Walk back from the newest turn until the window is full
+        var windowTokens = 0
+        var start = history.size
+        while (start > 0) {
+            val cost = estimateTokens(history[start - 1].content)
+            if (windowTokens + cost > windowBudget) break
+            windowTokens += cost
+            start--
+        }
+
+        // The window must open on a user turn to keep the turn order valid
+        while (start < history.size && history[start].role != "user") {
+            windowTokens -= estimateTokens(history[start].content)
+            start++
+        }
+
+        val folded = history.subList(0, start)
+        val window = history.subList(start, history.size).toList()
+        val summary = if (folded.isEmpty()) null else summarize(folded)
+        val summaryTokens = summary?.let { estimateTokens(it) } ?: 0
+
+        if (folded.isNotEmpty()) {
+            android.util.Log.d("ContextWindow", "Session $sessionId: folded ${folded.size} turns into summary, window ${window.size} turns")
+        }
+
+        budgets[sessionId] = ContextBudget(
+            maxTokens = maxTokens,
+            usedTokens = summaryTokens + windowTokens,
+            summaryTokens = summaryTokens,
+            windowTurns = window.size,
+            foldedTurns = folded.size
+        )
+        return ContextWindow(summary, window)
+    }
+
+    /**
+     * Accounts for a completed turn in the session's live conversation.
+     */
+    fun recordTurn(sessionId: String, prompt: String, reply: String, hasImage: Boolean) {
+        budgets.computeIfPresent(sessionId) { _, budget ->
+            budget.copy(
+                usedTokens = budget.usedTokens + promptTokens(prompt, hasImage) + estimateTokens(reply),
+                windowTurns = budget.windowTurns + 2
+            )
+        }
+    }
+
+    /**
+     * True when sending [prompt] to the session's live conversation could run past the budget.
+     */
+    fun wouldOverflow(sessionId: String, prompt: String, hasImage: Boolean): Boolean {
+        val budget = budgets[sessionId] ?: return false
+        return budget.usedTokens + promptTokens(prompt, hasImage) + reservedOutputTokens > maxTokens
+    }
+
+    fun getContextBudget(sessionId: String): ContextBudget? = budgets[sessionId]
+
+    fun clear() {
+        budgets.clear()
+    }
+
+    // Keeps the newest folded turns in the summary; the oldest drop out first
+    private fun summarize(folded: List<Turn>): String {
+        val lines = ArrayDeque<String>()
+        var tokens = estimateTokens(SUMMARY_HEADER)
+        for (turn in folded.asReversed()) {
+            val speaker = if (turn.role == "user") "User" else "Assistant"
+            val line = "- $speaker: ${firstSentence(turn.content).take(MAX_SUMMARY_LINE_CHARS)}"
+            val cost = estimateTokens(line)
+            if (tokens + cost > summaryTokenBudget) break
+            lines.addFirst(line)
+            tokens += cost
+        }
+        return SUMMARY_HEADER + "\n" + lines.joinToString("\n")
+    }
+
+    private fun firstSentence(text: String): String {
+        val trimmed = text.trim().replace("\\s+".toRegex(), " ")
+        val end = trimmed.indexOfFirst { it == '.' || it == '?' || it == '!' }
+        return if (end in 0 until trimmed.length - 1) trimmed.substring(0, end + 1) else trimmed
+    }
+
+    companion object {
+        // Matches EngineConfig.maxNumTokens
+        const val MAX_NUM_TOKENS = 2048
+        const val RESERVED_OUTPUT_TOKENS = 512
+        const val SUMMARY_TOKEN_BUDGET = 256
+
+        // Gemma 3n encodes an image into a fixed number of soft tokens
+        const val IMAGE_TOKENS = 256
+
+        private const val MESSAGE_OVERHEAD_TOKENS = 4 // Turn markers around each message
+        private const val MAX_SUMMARY_LINE_CHARS = 160
+        private const val SUMMARY_HEADER = "Summary of the earlier conversation:"
+
+        fun estimateTokens(text: String): Int = (text.length + 3) / 4 + MESSAGE_OVERHEAD_TOKENS
+
+        fun promptTokens(prompt: String, hasImage: Boolean): Int {
+            return estimateTokens(prompt) + if (hasImage) IMAGE_TOKENS else 0
+        }
+    }
+}
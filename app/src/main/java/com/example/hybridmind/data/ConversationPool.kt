@@ -0,0 +1,44 @@
+package com.example.hybridmind.data
+
+import android.util.LruCache
+import com.google.ai.edge.litertlm.Conversation
+
+/**
+ * Bounded pool of LiteRT-LM conversations keyed by [com.example.hybridmind.data.local.ChatSession.id].
+ *
+ * Each conversation holds its session's KV cache, so switching back to a pooled session costs no
+ * prefill. The pool is sized in bytes against [memoryBudgetBytes] using a fixed per-conversation
+ * estimate, and evicts least recently used sessions first. Evicted conversations are closed.
+ */
+class ConversationPool(
+    memoryBudgetBytes: Long,
+    private val bytesPerConversation: Long = DEFAULT_BYTES_PER_CONVERSATION
+) : LruCache<String, Conversation>(
+    // LruCache sizes are Ints, so account in KB
+    (memoryBudgetBytes / 1024).coerceIn(bytesPerConversation / 1024, Int.MAX_VALUE.toLong()).toInt()
+) {
+
+    override fun sizeOf(key: String, value: Conversation): Int {
+        return (bytesPerConversation / 1024).toInt()
+    }
+
+    override fun entryRemoved(evicted: Boolean, key: String, oldValue: Conversation, newValue: Conversation?) {
+        if (oldValue === newValue) return
+        if (evicted) {
+            android.util.Log.d("ConversationPool", "Evicting conversation for session $key")
+        }
+        try {
+            oldValue.close()
+        } catch (e: Exception) {
+            android.util.Log.e("ConversationPool", "Failed to close conversation: ${e.message}", e)
+        }
+    }
+
+    companion object {
+        // KV cache for a full 2048-token context (~32 KB per token on Gemma 3n int4)
+        const val DEFAULT_BYTES_PER_CONVERSATION = 2048L * 32 * 1024
+
+        // Room for four warm sessions by default
+        const val DEFAULT_MEMORY_BUDGET_BYTES = 4 * DEFAULT_BYTES_PER_CONVERSATION
+    }
+}
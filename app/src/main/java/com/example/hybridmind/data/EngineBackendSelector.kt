@@ -0,0 +1,158 @@
+package com.example.hybridmind.data
+
+import com.google.ai.edge.litertlm.Backend
+
+/**
+ * Picks the LiteRT-LM backend for a model on this device.
+ *
+ * The GPU is tried first with a short self-benchmark. If it fails to initialise, fails the
+ * benchmark or decodes too slowly, the CPU is tried instead. The winner is stored in the
+ * [ChoiceStore] per model and device build, so later loads skip probing. On a device or
+ * emulator without a usable GPU the CPU path is taken automatically.
+ *
+ * Engines come from an [EngineFactory], [LiteRtEngineFactory] in the app, so the choice can be
+ * exercised without a GPU. They are created text-only; [buildWithVision] adds the vision
+ * encoder when a conversation first needs it. The Gemma 3n vision encoder only runs on the
+ * GPU, so a CPU engine stays text-only.
+ */
+class EngineBackendSelector<E : Any>(
+    private val choices: ChoiceStore,
+    private val engines: EngineFactory<E>
+) {
+
+    /**
+     * Where the winning backend is remembered, keyed by model fingerprint.
+     */
+    interface ChoiceStore {
+        fun engineBackend(modelFingerprint: String): String?
+        fun setEngineBackend(modelFingerprint: String, backend: String)
+        fun clearEngineBackend(modelFingerprint: String)
+    }
+
+    /**
+     * Builds and measures engines of type [E].
+     */
+    interface EngineFactory<E> {
+        // Throws when the backend cannot initialise
+        fun build(modelPath: String, backend: Backend, withVision: Boolean = false): E
+
+        // Decode speed in tokens per second; throws when the engine cannot decode
+        suspend fun benchmark(engine: E): Double
+
+        // Primes kernels and caches before the first real request; failures are not fatal
+        suspend fun warmUp(engine: E)
+
+        fun close(engine: E)
+    }
+
+    data class Selection(
+        val backend: Backend,
+        val visionCapable: Boolean, // The vision encoder can be attached later
+        val tokensPerSecond: Double? // Null when restored from preferences without a benchmark
+    )
+
+    /**
+     * Returns an initialised engine for [modelPath] and the configuration it runs with.
+     *
+     * Pass [contended] when another engine may be decoding on the same GPU, as during a hot
+     * swap. A benchmark then measures the other engine's load as much as this one, so a saved
+     * choice is still used but nothing is probed or saved: the first backend that initialises
+     * is taken, and the next uncontended load probes properly.
+     */
+    suspend fun createEngine(
+        modelPath: String,
+        modelFingerprint: String,
+        contended: Boolean = false
+    ): Pair<E, Selection> {
+        choices.engineBackend(modelFingerprint)?.let { saved ->
+            val backend = if (saved == Backend.CPU.name) Backend.CPU else Backend.GPU
+            try {
+                val engine = engines.build(modelPath, backend)
+                android.util.Log.d("EngineBackendSelector", "Using saved backend $backend")
+                // Probing already ran a decode; a saved choice gets its warm-up here
+                engines.warmUp(engine)
+                return engine to Selection(backend, visionCapable = backend == Backend.GPU, tokensPerSecond = null)
+            } catch (e: Exception) {
+                android.util.Log.w("EngineBackendSelector", "Saved backend $backend failed, probing again: ${e.message}")
+                choices.clearEngineBackend(modelFingerprint)
+            }
+        }
+        return if (contended) firstWorking(modelPath) else probe(modelPath, modelFingerprint)
+    }
+
+    private suspend fun firstWorking(modelPath: String): Pair<E, Selection> {
+        for (backend in listOf(Backend.GPU, Backend.CPU)) {
+            val engine = try {
+                engines.build(modelPath, backend)
+            } catch (e: Exception) {
+                android.util.Log.w("EngineBackendSelector", "$backend failed to initialise: ${e.message}")
+                continue
+            }
+            android.util.Log.d("EngineBackendSelector", "Using $backend without probing, another engine is busy")
+            engines.warmUp(engine)
+            return engine to Selection(backend, visionCapable = backend == Backend.GPU, tokensPerSecond = null)
+        }
+        throw Exception("No LiteRT-LM backend could run this model on this device")
+    }
+
+    private suspend fun probe(modelPath: String, modelFingerprint: String): Pair<E, Selection> {
+        var gpuTokensPerSecond: Double? = null
+
+        tryBackend(modelPath, Backend.GPU)?.let { (engine, tps) ->
+            if (tps >= MIN_GPU_TOKENS_PER_SECOND) {
+                return choose(engine, Backend.GPU, tps, modelFingerprint)
+            }
+            // Too slow to keep, but remember it in case the CPU is slower still. Two multi-GB
+            // engines do not fit side by side, so this one is closed before the CPU is tried.
+            android.util.Log.w("EngineBackendSelector", "GPU decodes at only ${"%.1f".format(tps)} tok/s")
+            gpuTokensPerSecond = tps
+            engines.close(engine)
+        }
+
+        tryBackend(modelPath, Backend.CPU)?.let { (engine, tps) ->
+            val gpuTps = gpuTokensPerSecond
+            if (gpuTps == null || tps >= gpuTps) {
+                return choose(engine, Backend.CPU, tps, modelFingerprint)
+            }
+            engines.close(engine)
+        }
+
+        // The slow GPU still beat the CPU (or the CPU failed outright)
+        gpuTokensPerSecond?.let { tps ->
+            return choose(engines.build(modelPath, Backend.GPU), Backend.GPU, tps, modelFingerprint)
+        }
+        throw Exception("No LiteRT-LM backend could run this model on this device")
+    }
+
+    private fun choose(engine: E, backend: Backend, tokensPerSecond: Double, modelFingerprint: String): Pair<E, Selection> {
+        android.util.Log.d("EngineBackendSelector", "✓ Selected $backend (${"%.1f".format(tokensPerSecond)} tok/s)")
+        choices.setEngineBackend(modelFingerprint, backend.name)
+        return engine to Selection(backend, visionCapable = backend == Backend.GPU, tokensPerSecond = tokensPerSecond)
+    }
+
+    // Null when the backend cannot initialise or run the benchmark
+    private suspend fun tryBackend(modelPath: String, backend: Backend): Pair<E, Double>? {
+        val engine = try {
+            engines.build(modelPath, backend)
+        } catch (e: Exception) {
+            android.util.Log.w("EngineBackendSelector", "$backend failed to initialise: ${e.message}")
+            return null
+        }
+        return try {
+            engine to engines.benchmark(engine)
+        } catch (e: Exception) {
+            android.util.Log.w("EngineBackendSelector", "$backend failed the benchmark: ${e.message}")
+            engines.close(engine)
+            null
+        }
+    }
+
+    /**
+     * An engine for [modelPath] on the GPU with the vision encoder attached.
+     */
+    fun buildWithVision(modelPath: String): E = engines.build(modelPath, Backend.GPU, withVision = true)
+
+    companion object {
+        private const val MIN_GPU_TOKENS_PER_SECOND = 4.0
+    }
+}
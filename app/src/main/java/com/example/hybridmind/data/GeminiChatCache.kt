@@ -0,0 +1,76 @@
+package com.example.hybridmind.data
+
+import com.example.hybridmind.data.local.MessageHistoryMarker
+import com.google.ai.client.generativeai.Chat
+import com.google.ai.client.generativeai.GenerativeModel
+
+/**
+ * Reuses one [GenerativeModel] and a [Chat] per session, so an online turn only appends the new
+ * prompt instead of rebuilding, sanitising and re-decoding the whole history.
+ *
+ * Each entry remembers a [MessageHistoryMarker] of the Room rows its chat reflects: the count,
+ * the newest timestamp and the total text length. A lookup with a different marker means Room
+ * diverged (a delete, prune, edit or sync merge, or an offline turn in between) and the entry is
+ * dropped so the caller rebuilds it from Room.
+ */
+class GeminiChatCache(
+    apiKey: String,
+    modelName: String = "gemini-2.5-flash",
+    private val maxSessions: Int = DEFAULT_MAX_SESSIONS
+) {
+
+    val model = GenerativeModel(
+        modelName = modelName,
+        apiKey = apiKey
+    )
+
+    private class Entry(val chat: Chat, var roomHistory: MessageHistoryMarker)
+
+    // Access-ordered, so the eldest entry is the least recently used session
+    private val chats = object : LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Entry>?): Boolean {
+            return size > maxSessions
+        }
+    }
+
+    /**
+     * Returns the cached chat for [sessionId] if it still reflects the rows [roomHistory] describes.
+     */
+    @Synchronized
+    fun get(sessionId: String, roomHistory: MessageHistoryMarker): Chat? {
+        val entry = chats[sessionId] ?: return null
+        if (entry.roomHistory != roomHistory) {
+            android.util.Log.d("GeminiChatCache", "Room diverged for $sessionId, rebuilding chat")
+            chats.remove(sessionId)
+            return null
+        }
+        return entry.chat
+    }
+
+    @Synchronized
+    fun put(sessionId: String, chat: Chat, roomHistory: MessageHistoryMarker) {
+        chats[sessionId] = Entry(chat, roomHistory)
+    }
+
+    /**
+     * Records that the chat for [sessionId] now reflects the rows [roomHistory] describes.
+     */
+    @Synchronized
+    fun markSynced(sessionId: String, roomHistory: MessageHistoryMarker) {
+        chats[sessionId]?.roomHistory = roomHistory
+    }
+
+    @Synchronized
+    fun invalidate(sessionId: String) {
+        chats.remove(sessionId)
+    }
+
+    @Synchronized
+    fun clear() {
+        chats.clear()
+    }
+
+    companion object {
+        const val DEFAULT_MAX_SESSIONS = 8
+    }
+}
@@ -0,0 +1,34 @@
+package com.example.hybridmind.data
+
+/**
+ * Events emitted by [ChatRepository.generateStream] while a reply is being produced.
+ */
+sealed class GenerationEvent {
+
+    /**
+     * The first chunk of the reply arrived [latencyMs] after the request was issued.
+     */
+    data class FirstToken(val latencyMs: Long) : GenerationEvent()
+
+    /**
+     * A new piece of the reply. [text] is only the delta, not the accumulated reply.
+     */
+    data class Chunk(val text: String) : GenerationEvent()
+
+    /**
+     * Running totals for the reply so far.
+     */
+    data class Progress(
+        val chunkCount: Int,
+        val charCount: Int,
+        val elapsedMs: Long
+    ) : GenerationEvent()
+
+    /**
+     * The reply is complete and has been saved to Room.
+     */
+    data class Complete(
+        val fullText: String,
+        val totalMs: Long
+    ) : GenerationEvent()
+}
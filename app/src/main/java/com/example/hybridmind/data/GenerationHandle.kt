@@ -0,0 +1,53 @@
+package com.example.hybridmind.data
+
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.channels.Channel
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.receiveAsFlow
+import kotlinx.coroutines.launch
+
+/**
+ * A running generation started by [ChatRepository.startGeneration].
+ *
+ * The generation runs in the application scope rather than the caller's, so leaving the screen
+ * does not abort it; [cancel] does. Cancelling stops native decoding or the HTTP call and saves
+ * whatever part of the reply already arrived.
+ */
+class GenerationHandle internal constructor(
+    scope: CoroutineScope,
+    upstream: Flow<GenerationEvent>
+) {
+    private val channel = Channel<GenerationEvent>(Channel.UNLIMITED)
+
+    private val job: Job = scope.launch {
+        try {
+            upstream.collect { channel.send(it) }
+            channel.close()
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            // Handed to the consumer here; escaping the launch would crash the app through the
+            // scope's uncaught-exception handler
+            channel.close(e)
+        }
+    }.also { job ->
+        job.invokeOnCompletion {
+            // A stop is a normal end for the consumer
+            channel.close()
+        }
+    }
+
+    /**
+     * Events of this generation. Meant for a single collector; completes when the reply is
+     * complete or stopped.
+     */
+    val events: Flow<GenerationEvent> = channel.receiveAsFlow()
+
+    val isActive: Boolean get() = job.isActive
+
+    fun cancel() {
+        job.cancel()
+    }
+}
@@ -0,0 +1,176 @@
+package com.example.hybridmind.data
+
+import android.app.ActivityManager
+import android.content.Context
+import android.graphics.Bitmap
+import android.graphics.BitmapFactory
+import android.util.LruCache
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.security.MessageDigest
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Two-level cache of downscaled, model-ready JPEG payloads for chat images sent to Gemini.
+ *
+ * Both levels hold the encoded bytes that go on the wire, so a cached image is sent as a blob
+ * with no decode or re-compress per request. The memory level is an [LruCache] sized by payload
+ * length against [ActivityManager.getMemoryClass]; the disk level keeps the same JPEGs across
+ * restarts. Hit and miss counters cover both levels.
+ */
+class ImagePayloadCache(context: Context) {
+
+    private val diskDir = File(context.cacheDir, "image_payloads")
+
+    private val memoryCache: LruCache<String, ByteArray>
+
+    private val memoryHits = AtomicLong()
+    private val diskHits = AtomicLong()
+    private val misses = AtomicLong()
+
+    data class Stats(
+        val memoryHits: Long,
+        val diskHits: Long,
+        val misses: Long,
+        val memoryBytes: Int
+    )
+
+    init {
+        val activityManager = context.getSystemService(Context.ACTIVITY_SERVICE) as ActivityManager
+        // An eighth of the per-app heap, in bytes
+        val maxBytes = activityManager.memoryClass * 1024 * 1024 / 8
+        memoryCache = object : LruCache<String, ByteArray>(maxBytes) {
+            override fun sizeOf(key: String, value: ByteArray): Int = value.size
+        }
+    }
+
+    /**
+     * Model-ready JPEG bytes for an image stored at [path], at most [maxDimension] pixels on the
+     * long side, or null if it cannot be decoded.
+     */
+    fun get(path: String, maxDimension: Int = MAX_DIMENSION): ByteArray? {
+        val key = keyFor(path, maxDimension)
+
+        memoryCache.get(key)?.let {
+            memoryHits.incrementAndGet()
+            return it
+        }
+
+        val diskFile = File(diskDir, "$key.jpg")
+        if (diskFile.exists()) {
+            try {
+                val bytes = diskFile.readBytes()
+                diskHits.incrementAndGet()
+                memoryCache.put(key, bytes)
+                return bytes
+            } catch (e: Exception) {
+                android.util.Log.e("ImagePayloadCache", "Failed to read disk cache: ${e.message}")
+            }
+        }
+
+        misses.incrementAndGet()
+        val bytes = encodeDownscaled(maxDimension) { options -> BitmapFactory.decodeFile(path, options) } ?: return null
+        memoryCache.put(key, bytes)
+        writeToDisk(diskFile, bytes)
+        return bytes
+    }
+
+    /**
+     * Model-ready JPEG bytes for an image that is not stored yet, such as the photo being sent
+     * now. Not cached: the chat screen holds the bytes and they are encoded once per send.
+     */
+    fun encode(imageData: ByteArray, maxDimension: Int = MAX_DIMENSION): ByteArray? {
+        return encodeDownscaled(maxDimension) { options ->
+            BitmapFactory.decodeByteArray(imageData, 0, imageData.size, options)
+        }
+    }
+
+    fun stats(): Stats = Stats(
+        memoryHits = memoryHits.get(),
+        diskHits = diskHits.get(),
+        misses = misses.get(),
+        memoryBytes = memoryCache.size()
+    )
+
+    fun clear() {
+        memoryCache.evictAll()
+        diskDir.listFiles()?.forEach { it.delete() }
+    }
+
+    private fun encodeDownscaled(maxDimension: Int, decode: (BitmapFactory.Options) -> Bitmap?): ByteArray? {
+        val bitmap = decodeDownscaled(maxDimension, decode) ?: return null
+        val out = ByteArrayOutputStream()
+        bitmap.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out)
+        bitmap.recycle()
+        return out.toByteArray()
+    }
+
+    // Bounds decode work by the target size instead of a fixed inSampleSize
+    private fun decodeDownscaled(maxDimension: Int, decode: (BitmapFactory.Options) -> Bitmap?): Bitmap? {
+        val bounds = BitmapFactory.Options().apply { inJustDecodeBounds = true }
+        decode(bounds)
+        if (bounds.outWidth <= 0 || bounds.outHeight <= 0) return null
+
+        var sampleSize = 1
+        while (maxOf(bounds.outWidth, bounds.outHeight) / (sampleSize * 2) >= maxDimension) {
+            sampleSize *= 2
+        }
+        val options = BitmapFactory.Options().apply { inSampleSize = sampleSize }
+        val decoded = decode(options) ?: return null
+
+        val largest = maxOf(decoded.width, decoded.height)
+        if (largest <= maxDimension) return decoded
+        val scale = maxDimension.toFloat() / largest
+        val scaled = Bitmap.createScaledBitmap(
+            decoded,
+            (decoded.width * scale).toInt(),
+            (decoded.height * scale).toInt(),
+            true
+        )
+        if (scaled !== decoded) decoded.recycle()
+        return scaled
+    }
+
+    private fun writeToDisk(file: File, bytes: ByteArray) {
+        try {
+            if (!diskDir.exists()) diskDir.mkdirs()
+            val temp = File(diskDir, file.name + ".tmp")
+            temp.writeBytes(bytes)
+            temp.renameTo(file)
+            trimDisk()
+        } catch (e: Exception) {
+            android.util.Log.e("ImagePayloadCache", "Failed to write disk cache: ${e.message}")
+        }
+    }
+
+    private fun trimDisk() {
+        val files = diskDir.listFiles()?.filter { it.name.endsWith(".jpg") } ?: return
+        var total = files.sumOf { it.length() }
+        for (file in files.sortedBy { it.lastModified() }) {
+            if (total <= MAX_DISK_BYTES) break
+            total -= file.length()
+            file.delete()
+        }
+    }
+
+    // Stored images are never rewritten in place, but include size and mtime to be safe
+    private fun keyFor(path: String, maxDimension: Int): String {
+        val file = File(path)
+        val digest = MessageDigest.getInstance("SHA-1")
+            .digest("$path:${file.length()}:${file.lastModified()}:$maxDimension".toByteArray())
+        return digest.joinToString("") { "%02x".format(it) }
+    }
+
+    companion object {
+        const val MIME_TYPE = "image/jpeg"
+
+        // Gemini downsamples larger images anyway
+        const val MAX_DIMENSION = 1024
+
+        // Photos from earlier turns: the chat history is re-sent every turn, so it carries a
+        // small copy; the full-size image is only sent on the turn it is asked about
+        const val HISTORY_MAX_DIMENSION = 384
+        private const val JPEG_QUALITY = 85
+        private const val MAX_DISK_BYTES = 32L * 1024 * 1024
+    }
+}
@@ -0,0 +1,476 @@
+package com.example.hybridmind.data
+
+import android.app.ActivityManager
+import android.content.ComponentCallbacks2
+import android.content.Context
+import com.google.ai.edge.litertlm.Backend
+import com.google.ai.edge.litertlm.Conversation
+import com.google.ai.edge.litertlm.ConversationConfig
+import com.google.ai.edge.litertlm.Engine
+import com.google.ai.edge.litertlm.Message as LiteRTMessage  // Use alias for LiteRT-LM Message
+import com.google.ai.edge.litertlm.SamplerConfig
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Dispatchers
+import kotlinx.coroutines.SupervisorJob
+import kotlinx.coroutines.flow.MutableStateFlow
+import kotlinx.coroutines.flow.StateFlow
+import kotlinx.coroutines.flow.asStateFlow
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.sync.Mutex
+import kotlinx.coroutines.sync.withLock
+import kotlinx.coroutines.withContext
+import java.security.MessageDigest
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicBoolean
+
+/**
+ * Application-scoped owner of the LiteRT-LM engine, its conversations and the background scope
+ * used for sync work. It outlives Activity recreation, so rotations and theme switches keep the
+ * loaded model; it is only torn down by [unload] or under memory pressure.
+ */
+class InferenceHost(
+    private val context: Context,
+    conversationMemoryBudgetBytes: Long = ConversationPool.DEFAULT_MEMORY_BUDGET_BYTES
+) {
+
+    @Volatile
+    var engine: Engine? = null
+        private set
+
+    // One conversation (and KV cache) per chat session, bound to the current engine
+    val conversationPool = ConversationPool(conversationMemoryBudgetBytes)
+
+    // Sessions whose pooled conversation no longer matches Room; closed on next use under the LOCAL lane
+    private val staleConversations = ConcurrentHashMap.newKeySet<String>()
+
+    @Volatile
+    var loadedModelPath: String? = null
+        private set
+
+    // Backend key of the loaded model in latency stats and routing, e.g. "gemma-2b"
+    val loadedModelName: String?
+        get() = loadedModelPath?.let { java.io.File(it).nameWithoutExtension }
+
+    // Identifies the loaded model in response cache keys and saved backend choices
+    @Volatile
+    var modelFingerprint: String? = null
+        private set
+
+    // Backend the engine runs on, chosen by probing (see EngineBackendSelector)
+    @Volatile
+    var engineBackend: Backend? = null
+        private set
+
+    // The engine's backend can run the vision encoder; false for a CPU engine
+    @Volatile
+    var visionCapable: Boolean = false
+        private set
+
+    // The vision encoder is loaded; it is attached on the first image (see attachVision)
+    @Volatile
+    var visionEnabled: Boolean = false
+        private set
+
+    private val preferences = InferencePreferences(context)
+
+    private val backendSelector = EngineBackendSelector(
+        preferences,
+        LiteRtEngineFactory(context.getExternalFilesDir(null)?.absolutePath)
+    )
+
+    /**
+     * Lifecycle of the on-device engine, for screens that want to show it.
+     */
+    sealed class EngineState {
+        object Idle : EngineState()
+        data class Loading(val modelName: String) : EngineState()
+        data class Ready(val modelName: String) : EngineState()
+        data class Failed(val modelName: String, val message: String) : EngineState()
+    }
+
+    private val _state = MutableStateFlow<EngineState>(EngineState.Idle)
+    val state: StateFlow<EngineState> = _state.asStateFlow()
+
+    // Lives as long as the process; children fail independently
+    val scope = CoroutineScope(SupervisorJob() + Dispatchers.IO)
+
+    // Serialises generations per engine; see InferenceScheduler
+    val scheduler = InferenceScheduler(scope)
+
+    private val loadMutex = Mutex()
+
+    // An unload for memory pressure is queued for the LOCAL lane
+    private val trimPending = AtomicBoolean(false)
+
+    /**
+     * Starts loading [modelPath] on the host scope and returns at once; progress is published on
+     * [state]. Used at process start so the engine is warm by the time the user sends.
+     */
+    fun loadInBackground(modelPath: String) {
+        scope.launch {
+            try {
+                load(modelPath)
+            } catch (e: Exception) {
+                // Already logged and published as Failed by load
+            }
+        }
+    }
+
+    /**
+     * Suspends while a load is in progress. Returns whether an engine is ready afterwards.
+     */
+    suspend fun awaitReady(): Boolean {
+        state.first { it !is EngineState.Loading }
+        return isReady()
+    }
+
+    // Initialize LiteRT-LM Engine (call this after model download). Holds the LOCAL lane so the
+    // engine being replaced has no generation running on it; lane before mutex, as in swap.
+    suspend fun load(modelPath: String) {
+        scheduler.withLane(InferenceScheduler.Lane.LOCAL, InferenceScheduler.Priority.INTERACTIVE) {
+            loadEngine(modelPath)
+        }
+    }
+
+    private suspend fun loadEngine(modelPath: String) {
+        loadMutex.withLock {
+            if (loadedModelPath == modelPath && isReady()) {
+                android.util.Log.d("InferenceHost", "Model already loaded, reusing engine: $modelPath")
+                return
+            }
+
+            val modelName = java.io.File(modelPath).nameWithoutExtension
+            _state.value = EngineState.Loading(modelName)
+            withContext(Dispatchers.IO) {
+                try {
+                    android.util.Log.d("InferenceHost", "Starting LiteRT-LM initialization for: $modelPath")
+
+                    // 1. Validate file exists
+                    val file = java.io.File(modelPath)
+                    if (!file.exists()) {
+                        val errorMsg = "Model file not found at: $modelPath"
+                        android.util.Log.e("InferenceHost", errorMsg)
+                        throw Exception(errorMsg)
+                    }
+
+                    // 2. Validate file size
+                    val fileSizeMB = file.length() / (1024 * 1024)
+                    android.util.Log.d("InferenceHost", "Model file size: $fileSizeMB MB")
+
+                    if (file.length() < 1024 * 1024 * 100) {
+                        throw Exception("Model file too small ($fileSizeMB MB). Expected at least 100MB.")
+                    }
+
+                    // Free the previous model before loading another multi-GB one
+                    release()
+                    _state.value = EngineState.Loading(modelName)
+
+                    // 3. Create the engine on the backend that works best here: the saved
+                    // choice, or GPU then CPU by self-benchmark on first load
+                    android.util.Log.d("InferenceHost", "Initializing Engine...")
+                    val fingerprint = fingerprint(file)
+                    val (newEngine, selection) = backendSelector.createEngine(modelPath, fingerprint)
+                    android.util.Log.d("InferenceHost", "✓ Engine initialized on ${selection.backend}")
+
+                    // Conversations are created per session on first use (see conversationFor)
+                    engine = newEngine
+                    engineBackend = selection.backend
+                    visionCapable = selection.visionCapable
+                    visionEnabled = false
+                    loadedModelPath = modelPath
+                    modelFingerprint = fingerprint
+                    preferences.lastModelName = modelName
+                    _state.value = EngineState.Ready(modelName)
+
+                    android.util.Log.d("InferenceHost", "✓ LiteRT-LM initialized successfully!")
+
+                } catch (e: Exception) {
+                    val errorMsg = "Failed to initialize offline model: ${e.message}"
+                    android.util.Log.e("InferenceHost", errorMsg, e)
+                    e.printStackTrace()
+                    // A file that failed validation leaves the previous engine serving
+                    _state.value = loadedModelName?.takeIf { isReady() }?.let { EngineState.Ready(it) }
+                        ?: EngineState.Failed(modelName, e.message ?: "Unknown error")
+                    throw Exception(errorMsg, e)
+                }
+            }
+        }
+    }
+
+    fun isReady(): Boolean {
+        return engine != null
+    }
+
+    /**
+     * Switches to [modelPath] without downtime: the new engine is built while the current one
+     * keeps answering, new requests move to it once it is ready, the in-flight generation is
+     * drained and only then is the old engine closed. With nothing loaded this is [load].
+     *
+     * Both engines are resident for a moment, so the swap is refused up front if the device
+     * lacks the memory for the second one.
+     */
+    suspend fun swap(modelPath: String) {
+        if (!isReady()) {
+            load(modelPath)
+            return
+        }
+
+        val modelName = java.io.File(modelPath).nameWithoutExtension
+        val prepared = loadMutex.withLock {
+            if (loadedModelPath == modelPath && isReady()) {
+                android.util.Log.d("InferenceHost", "Model already loaded, nothing to swap: $modelPath")
+                return
+            }
+            withContext(Dispatchers.IO) {
+                val file = java.io.File(modelPath)
+                if (!file.exists()) {
+                    throw Exception("Model file not found at: $modelPath")
+                }
+                checkSwapHeadroom(file)
+
+                android.util.Log.d("InferenceHost", "Building $modelName next to ${loadedModelName} for hot swap...")
+                val fingerprint = fingerprint(file)
+                // The old engine may be decoding on the GPU meanwhile, which would skew a benchmark
+                val (newEngine, selection) = backendSelector.createEngine(modelPath, fingerprint, contended = true)
+                Triple(newEngine, selection, fingerprint)
+            }
+        }
+        val (newEngine, selection, fingerprint) = prepared
+
+        // The LOCAL lane runs one generation at a time, so once we hold it the old engine is
+        // idle; requests queued behind us run on the new one. Lane before mutex, as in attachVision.
+        val oldEngine = try {
+            scheduler.withLane(InferenceScheduler.Lane.LOCAL, InferenceScheduler.Priority.INTERACTIVE) {
+                loadMutex.withLock {
+                    val previous = engine
+                    conversationPool.evictAll() // Bound to the old engine
+                    engine = newEngine
+                    engineBackend = selection.backend
+                    visionCapable = selection.visionCapable
+                    visionEnabled = false
+                    loadedModelPath = modelPath
+                    modelFingerprint = fingerprint
+                    preferences.lastModelName = modelName
+                    _state.value = EngineState.Ready(modelName)
+                    previous
+                }
+            }
+        } catch (e: CancellationException) {
+            // Never switched: the new engine is ours to free
+            newEngine.close()
+            throw e
+        }
+
+        withContext(Dispatchers.IO) {
+            try {
+                oldEngine?.close()
+            } catch (e: Exception) {
+                android.util.Log.e("InferenceHost", "Error while closing the old engine: ${e.message}", e)
+            }
+        }
+        android.util.Log.d("InferenceHost", "✓ Hot swap to $modelName complete")
+    }
+
+    // The new model's weights are mapped while the old engine is still resident
+    private fun checkSwapHeadroom(modelFile: java.io.File) {
+        val activityManager = context.getSystemService(Context.ACTIVITY_SERVICE) as ActivityManager
+        val memoryInfo = ActivityManager.MemoryInfo()
+        activityManager.getMemoryInfo(memoryInfo)
+
+        val requiredBytes = (modelFile.length() * SWAP_MEMORY_FACTOR).toLong()
+        val availableBytes = memoryInfo.availMem - memoryInfo.threshold
+        if (requiredBytes > availableBytes) {
+            val message = "Not enough memory to switch models while one is loaded " +
+                "(needs ${requiredBytes / (1024 * 1024)} MB, ${availableBytes.coerceAtLeast(0) / (1024 * 1024)} MB free)"
+            android.util.Log.w("InferenceHost", message)
+            throw Exception(message)
+        }
+    }
+
+    /**
+     * Makes sure the engine can encode images, rebuilding it with the vision encoder the first
+     * time one is needed. Text-only users never pay for loading the vision tower. Pooled
+     * conversations are dropped by the rebuild and restored from Room on next use.
+     *
+     * The caller must hold the LOCAL lane of [scheduler] so no generation runs on the engine
+     * being replaced. Returns false when the engine is text-only.
+     */
+    suspend fun attachVision(): Boolean {
+        if (visionEnabled) return true
+        return loadMutex.withLock {
+            val modelPath = loadedModelPath
+            val fingerprint = modelFingerprint
+            if (visionEnabled || !visionCapable || modelPath == null || fingerprint == null) return@withLock visionEnabled
+
+            withContext(Dispatchers.IO) {
+                val start = System.currentTimeMillis()
+                android.util.Log.d("InferenceHost", "Attaching vision encoder...")
+                conversationPool.evictAll()
+                engine?.close()
+                engine = null
+                try {
+                    engine = backendSelector.buildWithVision(modelPath)
+                    visionEnabled = true
+                    android.util.Log.d("InferenceHost", "✓ Vision encoder attached in ${System.currentTimeMillis() - start} ms")
+                } catch (e: Exception) {
+                    // Keep text working; don't retry the vision encoder for this engine
+                    android.util.Log.e("InferenceHost", "Vision encoder failed, staying text-only: ${e.message}", e)
+                    visionCapable = false
+                    engine = try {
+                        backendSelector.createEngine(modelPath, fingerprint).first
+                    } catch (reloadError: Exception) {
+                        android.util.Log.e("InferenceHost", "Reloading text engine failed: ${reloadError.message}", reloadError)
+                        null
+                    }
+                    if (engine == null) release()
+                }
+            }
+            visionEnabled
+        }
+    }
+
+    /**
+     * Starts attaching the vision encoder in the background, e.g. when the image picker opens,
+     * so the first photo does not wait for it.
+     */
+    fun prewarmVision() {
+        if (visionEnabled || !visionCapable) return
+        scope.launch {
+            scheduler.withLane(InferenceScheduler.Lane.LOCAL, InferenceScheduler.Priority.BACKGROUND) {
+                attachVision()
+            }
+        }
+    }
+
+    /**
+     * What a rebuilt conversation is prefilled with: an optional system message and prior turns.
+     */
+    data class ConversationSeed(
+        val systemMessage: LiteRTMessage?,
+        val initialMessages: List<LiteRTMessage>
+    )
+
+    /**
+     * Returns the pooled conversation for [sessionId], or builds one on a miss by prefilling
+     * [seed] in a single batch. Returns null when no engine is loaded.
+     */
+    suspend fun conversationFor(
+        sessionId: String,
+        seed: suspend () -> ConversationSeed
+    ): Conversation? {
+        val currentEngine = engine ?: return null
+        if (staleConversations.remove(sessionId)) conversationPool.remove(sessionId)
+        conversationPool.get(sessionId)?.let { return it }
+
+        val conversationSeed = seed()
+        android.util.Log.d("InferenceHost", "Pool miss for $sessionId, prefilling ${conversationSeed.initialMessages.size} messages")
+        val newConversation = withContext(Dispatchers.IO) {
+            currentEngine.createConversation(
+                ConversationConfig(
+                    systemMessage = conversationSeed.systemMessage,
+                    initialMessages = conversationSeed.initialMessages,
+                    samplerConfig = SAMPLER_CONFIG
+                )
+            )
+        }
+        conversationPool.put(sessionId, newConversation)
+        return newConversation
+    }
+
+    /**
+     * Marks [sessionId]'s pooled conversation as out of date, e.g. after Gemini answered a turn
+     * it never saw. Safe without the LOCAL lane: a local decode may still be running on that
+     * conversation, so it is closed the next time the session runs locally instead of now.
+     */
+    fun invalidateConversation(sessionId: String) {
+        staleConversations.add(sessionId)
+    }
+
+    fun invalidateAllConversations() {
+        staleConversations.addAll(conversationPool.snapshot().keys)
+    }
+
+    /**
+     * Explicitly unloads the model and frees its native memory.
+     */
+    suspend fun unload() {
+        scheduler.withLane(InferenceScheduler.Lane.LOCAL, InferenceScheduler.Priority.INTERACTIVE) {
+            loadMutex.withLock {
+                release()
+            }
+        }
+    }
+
+    /**
+     * Forwarded from [android.app.Application.onTrimMemory]. The engine is dropped only when the
+     * system is about to kill us anyway, so ordinary backgrounding keeps the model warm.
+     *
+     * RUNNING_CRITICAL can arrive mid-reply, so the unload waits for the LOCAL lane: the
+     * generation in flight finishes first and queued background work goes after the unload.
+     */
+    fun onTrimMemory(level: Int) {
+        if (level != ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL &&
+            level < ComponentCallbacks2.TRIM_MEMORY_COMPLETE
+        ) return
+        if (!isReady() || !trimPending.compareAndSet(false, true)) return
+
+        scope.launch {
+            try {
+                unload()
+                android.util.Log.w("InferenceHost", "Memory pressure (level $level), model unloaded")
+            } finally {
+                trimPending.set(false)
+            }
+        }
+    }
+
+    private fun release() {
+        try {
+            conversationPool.evictAll()
+            engine?.close()
+        } catch (e: Exception) {
+            android.util.Log.e("InferenceHost", "Error while releasing engine: ${e.message}", e)
+        }
+        engine = null
+        _state.value = EngineState.Idle
+        engineBackend = null
+        visionCapable = false
+        visionEnabled = false
+        loadedModelPath = null
+        modelFingerprint = null
+    }
+
+    companion object {
+        // Weights plus runtime buffers and KV cache, relative to the model file size
+        private const val SWAP_MEMORY_FACTOR = 1.25
+
+        private const val TOP_K = 40
+        private const val TOP_P = 0.95
+        private const val TEMPERATURE = 0.8
+
+        private val SAMPLER_CONFIG = SamplerConfig(
+            topK = TOP_K,
+            topP = TOP_P,
+            temperature = TEMPERATURE
+        )
+
+        // Identifies the sampler in response cache keys
+        val SAMPLER_SETTINGS = "topK=$TOP_K,topP=$TOP_P,temperature=$TEMPERATURE"
+
+        /**
+         * Cheap identity for a multi-GB model file: size, mtime and a hash of its first MB.
+         */
+        fun fingerprint(modelFile: java.io.File): String {
+            val digest = MessageDigest.getInstance("SHA-256")
+            digest.update("${modelFile.name}:${modelFile.length()}:${modelFile.lastModified()}".toByteArray())
+            modelFile.inputStream().use { input ->
+                val head = ByteArray(1024 * 1024)
+                val read = input.read(head)
+                if (read > 0) digest.update(head, 0, read)
+            }
+            return digest.digest().take(12).joinToString("") { "%02x".format(it) }
+        }
+    }
+}
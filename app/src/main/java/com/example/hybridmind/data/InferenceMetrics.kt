@@ -0,0 +1,76 @@
+package com.example.hybridmind.data
+
+import com.example.hybridmind.data.local.InferenceMetric
+import com.example.hybridmind.data.local.InferenceMetricDao
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Per-generation speed records, kept in a bounded Room table so a regression in a model or
+ * backend shows up across restarts.
+ */
+class InferenceMetrics(
+    private val dao: InferenceMetricDao,
+    private val maxRecords: Int = DEFAULT_MAX_RECORDS
+) {
+
+    data class BackendSummary(
+        val backend: String,
+        val modelFile: String,
+        val engineBackend: String?, // GPU or CPU for on-device records
+        val samples: Int,
+        val ttftP50Ms: Long,
+        val ttftP95Ms: Long,
+        val prefillP50Ms: Long,
+        val prefillP95Ms: Long,
+        val decodeTokensPerSecP50: Double,
+        val decodeTokensPerSecP5: Double, // Slow tail of decode speed
+        val outputTokensP50: Int,
+        val imageShare: Double
+    )
+
+    private val insertsSinceTrim = AtomicInteger()
+
+    suspend fun record(metric: InferenceMetric) {
+        dao.insert(metric)
+        if (insertsSinceTrim.incrementAndGet() >= TRIM_EVERY_INSERTS) {
+            insertsSinceTrim.set(0)
+            dao.trim(maxRecords)
+        }
+    }
+
+    /**
+     * Percentiles over the stored records, busiest first. Records are grouped by model file and
+     * engine backend as well, so one slow model or a CPU fallback is not averaged away.
+     */
+    suspend fun summaries(): List<BackendSummary> {
+        return dao.getAll()
+            .groupBy { Triple(it.backend, it.model_file, it.engine_backend) }
+            .map { (key, records) ->
+                BackendSummary(
+                    backend = key.first,
+                    modelFile = key.second,
+                    engineBackend = key.third,
+                    samples = records.size,
+                    ttftP50Ms = percentile(records.map { it.ttft_ms }, 50),
+                    ttftP95Ms = percentile(records.map { it.ttft_ms }, 95),
+                    prefillP50Ms = percentile(records.map { it.prefill_ms }, 50),
+                    prefillP95Ms = percentile(records.map { it.prefill_ms }, 95),
+                    decodeTokensPerSecP50 = percentile(records.map { it.decode_tokens_per_sec }, 50),
+                    decodeTokensPerSecP5 = percentile(records.map { it.decode_tokens_per_sec }, 5),
+                    outputTokensP50 = percentile(records.map { it.output_tokens }, 50),
+                    imageShare = records.count { it.has_image }.toDouble() / records.size
+                )
+            }
+            .sortedByDescending { it.samples }
+    }
+
+    private fun <T : Comparable<T>> percentile(values: List<T>, percentile: Int): T {
+        val sorted = values.sorted()
+        return sorted[((percentile / 100.0) * (sorted.size - 1)).toInt()]
+    }
+
+    companion object {
+        private const val DEFAULT_MAX_RECORDS = 500
+        private const val TRIM_EVERY_INSERTS = 25
+    }
+}
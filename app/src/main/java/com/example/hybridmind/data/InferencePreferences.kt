@@ -0,0 +1,46 @@
+package com.example.hybridmind.data
+
+import android.content.Context
+import android.os.Build
+
+/**
+ * Persistent user and device settings for inference.
+ */
+class InferencePreferences(context: Context) : EngineBackendSelector.ChoiceStore {
+
+    private val prefs = context.getSharedPreferences("inference_prefs", Context.MODE_PRIVATE)
+
+    // Race Gemini against the on-device model when Gemini is slow to start
+    var hedgedModeEnabled: Boolean
+        get() = prefs.getBoolean(KEY_HEDGED_MODE, false)
+        set(value) = prefs.edit().putBoolean(KEY_HEDGED_MODE, value).apply()
+
+    // Name of the on-device model loaded last, warmed up at the next launch
+    var lastModelName: String?
+        get() = prefs.getString(KEY_LAST_MODEL, null)
+        set(value) = prefs.edit().putString(KEY_LAST_MODEL, value).apply()
+
+    /**
+     * The LiteRT-LM backend that won probing for this model on this device, or null if it has
+     * not been probed since the last system update (a new build can bring new GPU drivers).
+     */
+    override fun engineBackend(modelFingerprint: String): String? {
+        val stored = prefs.getString(KEY_ENGINE_BACKEND_PREFIX + modelFingerprint, null) ?: return null
+        val (backend, build) = stored.split('|', limit = 2).takeIf { it.size == 2 } ?: return null
+        return if (build == Build.FINGERPRINT) backend else null
+    }
+
+    override fun setEngineBackend(modelFingerprint: String, backend: String) {
+        prefs.edit().putString(KEY_ENGINE_BACKEND_PREFIX + modelFingerprint, "$backend|${Build.FINGERPRINT}").apply()
+    }
+
+    override fun clearEngineBackend(modelFingerprint: String) {
+        prefs.edit().remove(KEY_ENGINE_BACKEND_PREFIX + modelFingerprint).apply()
+    }
+
+    companion object {
+        private const val KEY_HEDGED_MODE = "hedged_mode_enabled"
+        private const val KEY_ENGINE_BACKEND_PREFIX = "engine_backend_"
+        private const val KEY_LAST_MODEL = "last_model_name"
+    }
+}
@@ -0,0 +1,151 @@
+package com.example.hybridmind.data
+
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.flow.Flow
+import kotlinx.coroutines.flow.SharedFlow
+import kotlinx.coroutines.flow.SharingStarted
+import kotlinx.coroutines.flow.catch
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.map
+import kotlinx.coroutines.flow.onCompletion
+import kotlinx.coroutines.flow.shareIn
+import kotlinx.coroutines.flow.takeWhile
+import java.util.PriorityQueue
+
+/**
+ * Coordinates generation requests across backends.
+ *
+ * - Each [Lane] runs one request at a time, so two generations never share an engine.
+ * - Waiting requests are granted by [Priority], then in arrival order, so interactive chat
+ *   overtakes queued background work.
+ * - Identical requests that are already in flight share one generation ([dedupe]).
+ * - A request cancelled while waiting leaves the queue; one cancelled while running releases
+ *   its lane as soon as the generation flow is torn down.
+ */
+class InferenceScheduler(private val scope: CoroutineScope) {
+
+    enum class Lane { LOCAL, GEMINI }
+
+    enum class Priority { INTERACTIVE, BACKGROUND }
+
+    private class Waiter(
+        val priority: Priority,
+        val sequence: Long,
+        val grant: CompletableDeferred<Unit> = CompletableDeferred()
+    )
+
+    private class LaneState {
+        var busy = false
+        val waiters = PriorityQueue<Waiter>(compareBy<Waiter>({ it.priority.ordinal }, { it.sequence }))
+    }
+
+    private sealed class Signal<out T> {
+        data class Item<T>(val value: T) : Signal<T>()
+        object Done : Signal<Nothing>()
+        data class Failed(val error: Throwable) : Signal<Nothing>()
+    }
+
+    private val lock = Any()
+    private val lanes = Lane.values().associateWith { LaneState() }
+    private var nextSequence = 0L
+    private val inFlight = HashMap<String, SharedFlow<Signal<*>>>()
+
+    /**
+     * Runs [block] with exclusive use of [lane].
+     */
+    suspend fun <T> withLane(lane: Lane, priority: Priority, block: suspend () -> T): T {
+        acquire(lane, priority)
+        try {
+            return block()
+        } finally {
+            release(lane)
+        }
+    }
+
+    /**
+     * Collects [upstream] with exclusive use of [lane]; the lane is held until the flow completes,
+     * fails or is cancelled.
+     */
+    fun <T> schedule(lane: Lane, priority: Priority, upstream: Flow<T>): Flow<T> = flow {
+        acquire(lane, priority)
+        try {
+            upstream.collect { emit(it) }
+        } finally {
+            release(lane)
+        }
+    }
+
+    /**
+     * Shares one collection of [upstream] between all callers that pass the same [key] while it
+     * is running. Late joiners replay everything emitted so far. The generation is cancelled once
+     * its last collector goes away.
+     */
+    @Suppress("UNCHECKED_CAST")
+    fun <T> dedupe(key: String, upstream: Flow<T>): Flow<T> {
+        val shared = synchronized(lock) {
+            inFlight.getOrPut(key) {
+                upstream
+                    .map<T, Signal<*>> { Signal.Item(it) }
+                    .onCompletion { cause -> if (cause == null) emit(Signal.Done) }
+                    .catch { emit(Signal.Failed(it)) }
+                    .onCompletion { synchronized(lock) { inFlight.remove(key) } }
+                    .shareIn(scope, SharingStarted.WhileSubscribed(), replay = Int.MAX_VALUE)
+            }
+        }
+
+        return flow {
+            shared
+                .takeWhile { it is Signal.Item<*> || it is Signal.Failed }
+                .collect { signal ->
+                    when (signal) {
+                        is Signal.Item<*> -> emit(signal.value as T)
+                        is Signal.Failed -> throw signal.error
+                        Signal.Done -> Unit
+                    }
+                }
+        }
+    }
+
+    private suspend fun acquire(lane: Lane, priority: Priority) {
+        val waiter: Waiter
+        synchronized(lock) {
+            val state = lanes.getValue(lane)
+            if (!state.busy) {
+                state.busy = true
+                return
+            }
+            waiter = Waiter(priority, nextSequence++)
+            state.waiters.add(waiter)
+        }
+
+        try {
+            waiter.grant.await()
+        } catch (e: CancellationException) {
+            synchronized(lock) {
+                // Already granted: hand the lane on instead of leaking it
+                if (!lanes.getValue(lane).waiters.remove(waiter)) {
+                    releaseLocked(lane)
+                }
+            }
+            throw e
+        }
+    }
+
+    private fun release(lane: Lane) {
+        synchronized(lock) {
+            releaseLocked(lane)
+        }
+    }
+
+    private fun releaseLocked(lane: Lane) {
+        val state = lanes.getValue(lane)
+        val next = state.waiters.poll()
+        if (next == null) {
+            state.busy = false
+        } else {
+            next.grant.complete(Unit)
+        }
+    }
+}
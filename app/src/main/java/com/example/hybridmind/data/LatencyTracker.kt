@@ -0,0 +1,71 @@
+package com.example.hybridmind.data
+
+/**
+ * Rolling time-to-first-token and decode-speed samples per backend, used to set adaptive
+ * deadlines and to route requests. Backends are keyed by id: [GEMINI] or a local model name
+ * such as "gemma-2b".
+ */
+class LatencyTracker(private val windowSize: Int = DEFAULT_WINDOW_SIZE) {
+
+    private val timeToFirstToken = HashMap<String, ArrayDeque<Long>>()
+    private val tokensPerSecond = HashMap<String, ArrayDeque<Long>>()
+
+    @Synchronized
+    fun recordTimeToFirstToken(backend: String, millis: Long) {
+        add(timeToFirstToken, backend, millis)
+    }
+
+    @Synchronized
+    fun recordTokensPerSecond(backend: String, tokensPerSecond: Double) {
+        add(this.tokensPerSecond, backend, tokensPerSecond.toLong())
+    }
+
+    /**
+     * The [percentile] (0-100) of recent time-to-first-token samples, or null with too few samples.
+     */
+    @Synchronized
+    fun timeToFirstTokenPercentile(backend: String, percentile: Int): Long? {
+        return percentile(timeToFirstToken[backend], percentile)
+    }
+
+    /**
+     * Median recent decode speed, or null with too few samples.
+     */
+    @Synchronized
+    fun medianTokensPerSecond(backend: String): Long? {
+        return percentile(tokensPerSecond[backend], 50)
+    }
+
+    /**
+     * How long to wait for Gemini's first token before starting the on-device model as a hedge:
+     * a margin over Gemini's recent p95, so healthy links are never hedged.
+     */
+    fun hedgeDeadlineMs(): Long {
+        val p95 = timeToFirstTokenPercentile(GEMINI, 95) ?: return DEFAULT_HEDGE_DEADLINE_MS
+        return (p95 * 3 / 2).coerceIn(MIN_HEDGE_DEADLINE_MS, MAX_HEDGE_DEADLINE_MS)
+    }
+
+    private fun add(samples: HashMap<String, ArrayDeque<Long>>, backend: String, value: Long) {
+        val window = samples.getOrPut(backend) { ArrayDeque() }
+        window.addLast(value)
+        if (window.size > windowSize) window.removeFirst()
+    }
+
+    private fun percentile(window: ArrayDeque<Long>?, percentile: Int): Long? {
+        if (window == null || window.size < MIN_SAMPLES) return null
+        val sorted = window.sorted()
+        val index = ((percentile / 100.0) * (sorted.size - 1)).toInt()
+        return sorted[index]
+    }
+
+    companion object {
+        const val GEMINI = "gemini"
+
+        private const val DEFAULT_WINDOW_SIZE = 50
+        private const val MIN_SAMPLES = 5
+
+        private const val DEFAULT_HEDGE_DEADLINE_MS = 3_000L
+        private const val MIN_HEDGE_DEADLINE_MS = 1_500L
+        private const val MAX_HEDGE_DEADLINE_MS = 8_000L
+    }
+}
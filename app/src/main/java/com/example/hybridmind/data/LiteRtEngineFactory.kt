@@ -0,0 +1,120 @@
+package com.example.hybridmind.data
+
+import com.google.ai.edge.litertlm.Backend
+import com.google.ai.edge.litertlm.Content
+import com.google.ai.edge.litertlm.ConversationConfig
+import com.google.ai.edge.litertlm.Engine
+import com.google.ai.edge.litertlm.EngineConfig
+import com.google.ai.edge.litertlm.Message as LiteRTMessage
+import com.google.ai.edge.litertlm.MessageCallback
+import com.google.ai.edge.litertlm.SamplerConfig
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.withTimeoutOrNull
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Creates LiteRT-LM engines for [EngineBackendSelector] and measures them with a short greedy
+ * decode.
+ */
+class LiteRtEngineFactory(private val cacheDir: String?) : EngineBackendSelector.EngineFactory<Engine> {
+
+    override fun build(modelPath: String, backend: Backend, withVision: Boolean): Engine {
+        val engineConfig = EngineConfig(
+            modelPath = modelPath,
+            backend = backend,
+            visionBackend = if (withVision) Backend.GPU else null,
+            maxNumTokens = ContextWindowManager.MAX_NUM_TOKENS,
+            cacheDir = cacheDir
+        )
+        val engine = Engine(engineConfig)
+        try {
+            engine.initialize()
+        } catch (e: Exception) {
+            engine.close()
+            throw e
+        }
+        return engine
+    }
+
+    /**
+     * Runs a one-token decode so GPU kernels are compiled and caches primed before the first
+     * real request. Failures are only logged: the engine still works, just colder.
+     */
+    override suspend fun warmUp(engine: Engine) {
+        try {
+            val start = System.currentTimeMillis()
+            decode(engine, WARM_UP_PROMPT, maxChunks = 1)
+            android.util.Log.d("LiteRtEngineFactory", "✓ Warm-up decode in ${System.currentTimeMillis() - start} ms")
+        } catch (e: Exception) {
+            android.util.Log.w("LiteRtEngineFactory", "Warm-up decode failed: ${e.message}")
+        }
+    }
+
+    /**
+     * Decode speed on a short fixed prompt, in chunks per second (LiteRT-LM streams about one
+     * token per chunk). Prefill is excluded by timing from the first chunk.
+     */
+    override suspend fun benchmark(engine: Engine): Double {
+        val result = decode(engine, BENCHMARK_PROMPT, maxChunks = BENCHMARK_CHUNKS)
+        val decodeMs = result.lastChunkAt - result.firstChunkAt
+        if (result.chunks < 2 || decodeMs <= 0) {
+            throw Exception(if (result.finished) "Benchmark produced no output" else "Benchmark timed out")
+        }
+        return (result.chunks - 1) * 1000.0 / decodeMs
+    }
+
+    private class DecodeResult(val chunks: Int, val firstChunkAt: Long, val lastChunkAt: Long, val finished: Boolean)
+
+    // Greedy decode of [prompt] on a throwaway conversation, stopped after [maxChunks] chunks
+    private suspend fun decode(engine: Engine, prompt: String, maxChunks: Int): DecodeResult {
+        val conversation = engine.createConversation(
+            ConversationConfig(samplerConfig = BENCHMARK_SAMPLER)
+        )
+        try {
+            val chunks = AtomicInteger()
+            val firstChunkAt = AtomicLong()
+            val lastChunkAt = AtomicLong()
+            val done = CompletableDeferred<Unit>()
+
+            conversation.sendMessageAsync(
+                LiteRTMessage.of(listOf(Content.Text(prompt))),
+                object : MessageCallback {
+                    override fun onMessage(message: LiteRTMessage) {
+                        val now = System.currentTimeMillis()
+                        firstChunkAt.compareAndSet(0, now)
+                        lastChunkAt.set(now)
+                        if (chunks.incrementAndGet() >= maxChunks) done.complete(Unit)
+                    }
+
+                    override fun onDone() {
+                        done.complete(Unit)
+                    }
+
+                    override fun onError(throwable: Throwable) {
+                        done.completeExceptionally(throwable)
+                    }
+                }
+            )
+
+            val finished = withTimeoutOrNull(BENCHMARK_TIMEOUT_MS) { done.await() } != null
+            conversation.cancelProcess()
+            return DecodeResult(chunks.get(), firstChunkAt.get(), lastChunkAt.get(), finished)
+        } finally {
+            conversation.close()
+        }
+    }
+
+    override fun close(engine: Engine) {
+        engine.close()
+    }
+
+    companion object {
+        private const val BENCHMARK_PROMPT = "Count from one to thirty in words, separated by commas."
+        private const val BENCHMARK_CHUNKS = 24
+        private const val BENCHMARK_TIMEOUT_MS = 15_000L
+        private const val WARM_UP_PROMPT = "Hi"
+
+        private val BENCHMARK_SAMPLER = SamplerConfig(topK = 1, topP = 1.0, temperature = 0.0)
+    }
+}
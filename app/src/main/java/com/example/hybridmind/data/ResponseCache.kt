@@ -0,0 +1,115 @@
+package com.example.hybridmind.data
+
+import com.example.hybridmind.data.local.ResponseCacheDao
+import com.example.hybridmind.data.local.ResponseCacheEntry
+import java.security.MessageDigest
+import java.text.Normalizer
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Exact-match cache of finished replies, stored in Room so it survives restarts.
+ *
+ * A reply is only reused for the same normalised prompt, the same image, the same trailing
+ * conversation, the same model and the same sampler settings. Entries expire after [ttlMs] and
+ * the least recently used are evicted once the table exceeds [maxBytes].
+ */
+class ResponseCache(
+    private val dao: ResponseCacheDao,
+    private val ttlMs: Long = DEFAULT_TTL_MS,
+    private val maxBytes: Long = DEFAULT_MAX_BYTES
+) {
+
+    data class Stats(val hits: Long, val misses: Long) {
+        val hitRate: Double get() = if (hits + misses == 0L) 0.0 else hits.toDouble() / (hits + misses)
+    }
+
+    private val hits = AtomicLong()
+    private val misses = AtomicLong()
+    private val putsSinceTrim = AtomicInteger()
+
+    suspend fun get(key: String): String? {
+        val entry = dao.get(key)
+        val now = System.currentTimeMillis()
+        if (entry == null || now - entry.created_at > ttlMs) {
+            misses.incrementAndGet()
+            return null
+        }
+        dao.touch(key, now)
+        hits.incrementAndGet()
+        return entry.response
+    }
+
+    suspend fun put(key: String, modelId: String, response: String) {
+        val now = System.currentTimeMillis()
+        dao.insert(
+            ResponseCacheEntry(
+                cache_key = key,
+                response = response,
+                model_id = modelId,
+                created_at = now,
+                last_accessed = now,
+                size_bytes = response.length * 2 + key.length + modelId.length
+            )
+        )
+        // Summing the table on every reply is wasteful; trimming in batches bounds it well enough
+        if (putsSinceTrim.incrementAndGet() >= TRIM_EVERY_PUTS) {
+            putsSinceTrim.set(0)
+            trim(now)
+        }
+    }
+
+    fun stats(): Stats = Stats(hits.get(), misses.get())
+
+    suspend fun clear() {
+        dao.clear()
+    }
+
+    private suspend fun trim(now: Long) {
+        dao.deleteExpired(now - ttlMs)
+        while (dao.totalSizeBytes() > maxBytes) {
+            dao.deleteLeastRecentlyUsed(EVICTION_BATCH)
+        }
+    }
+
+    companion object {
+        private const val DEFAULT_TTL_MS = 7 * 24 * 60 * 60 * 1000L
+        private const val DEFAULT_MAX_BYTES = 8L * 1024 * 1024
+        private const val TRIM_EVERY_PUTS = 16
+        private const val EVICTION_BATCH = 16
+
+        /**
+         * Cache key for a request. [contextHash] covers the turns before the prompt, so the same
+         * question in a different conversation is a different entry.
+         */
+        fun keyFor(
+            prompt: String,
+            imageHash: String?,
+            contextHash: String,
+            modelId: String,
+            samplerSettings: String
+        ): String {
+            return sha256(
+                listOf(normalize(prompt), imageHash ?: "", contextHash, modelId, samplerSettings)
+                    .joinToString("\u0000")
+            )
+        }
+
+        fun contextHash(turns: List<ContextWindowManager.Turn>): String {
+            return sha256(turns.joinToString("\u0000") { "${it.role}\u0001${it.content}" })
+        }
+
+        // Whitespace and Unicode form differences should not cost a regeneration
+        private fun normalize(prompt: String): String {
+            return Normalizer.normalize(prompt, Normalizer.Form.NFC)
+                .trim()
+                .replace(Regex("\\s+"), " ")
+        }
+
+        private fun sha256(text: String): String {
+            return MessageDigest.getInstance("SHA-256")
+                .digest(text.toByteArray())
+                .joinToString("") { "%02x".format(it) }
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.hybridmind.data
+
+import java.security.MessageDigest
+import java.util.Collections
+import java.util.WeakHashMap
+
+/**
+ * Remembers which images a backend context has already seen, keyed by image content hash.
+ *
+ * A context is the object that holds the conversation state: a LiteRT-LM Conversation or a
+ * Gemini Chat. Entries are weak, so when a context is evicted or rebuilt its record goes with
+ * it and the image is sent once more to the new context.
+ */
+class VisionContextCache {
+
+    private val sentImages = Collections.synchronizedMap(WeakHashMap<Any, MutableSet<String>>())
+
+    // The chat screen resends the same array every turn, so hash it only once
+    @Volatile
+    private var lastHashed: Pair<ByteArray, String>? = null
+
+    fun hashOf(imageData: ByteArray): String {
+        lastHashed?.let { (bytes, hash) -> if (bytes === imageData) return hash }
+        val hash = MessageDigest.getInstance("SHA-256")
+            .digest(imageData)
+            .joinToString("") { "%02x".format(it) }
+        lastHashed = imageData to hash
+        return hash
+    }
+
+    fun hasSent(context: Any, imageHash: String): Boolean {
+        return sentImages[context]?.contains(imageHash) == true
+    }
+
+    fun markSent(context: Any, imageHash: String) {
+        synchronized(sentImages) {
+            sentImages.getOrPut(context) { mutableSetOf() }.add(imageHash)
+        }
+    }
+}
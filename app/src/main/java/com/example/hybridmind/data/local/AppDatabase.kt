@@ -1,17 +1,29 @@
 package com.example.hybridmind.data.local
 
+import androidx.paging.PagingSource
 import androidx.room.Dao
 import androidx.room.Database
 import androidx.room.Entity
 import androidx.room.ForeignKey
+import androidx.room.Fts4
+import androidx.room.FtsOptions
 import androidx.room.Insert
 import androidx.room.OnConflictStrategy
 import androidx.room.PrimaryKey
 import androidx.room.Query
+import androidx.room.Transaction
 import androidx.room.Update
+import androidx.room.Upsert
 import androidx.room.RoomDatabase
+import androidx.room.migration.Migration
+import androidx.sqlite.db.SupportSQLiteDatabase
+import kotlinx.coroutines.flow.Flow
 
-@Entity(tableName = "chat_sessions")
+@Entity(
+    tableName = "chat_sessions",
+    // The drawer lists a user's sessions newest first
+    indices = [androidx.room.Index(value = ["user_id", "last_updated"])]
+)
 data class ChatSession(
     @PrimaryKey val id: String,
     val user_id: String, // Added for user isolation
@@ -30,7 +42,8 @@ data class ChatSession(
             onDelete = ForeignKey.CASCADE
         )
     ],
-    indices = [androidx.room.Index(value = ["session_id"])]
+    // Serves the foreign key, per-session history in timestamp order and the prune range
+    indices = [androidx.room.Index(value = ["session_id", "timestamp"])]
 )
 data class Message(
     @PrimaryKey val id: String,
@@ -41,31 +54,314 @@ data class Message(
     val image_path: String? = null
 )
 
+// Full-text index over message text, kept in sync with `messages` by triggers. The 2- and
+// 3-character prefix indices serve the trailing-prefix term of search-as-you-type queries.
+@Fts4(contentEntity = Message::class, tokenizer = FtsOptions.TOKENIZER_UNICODE61, prefix = [2, 3])
+@Entity(tableName = "messages_fts")
+data class MessageFts(
+    val content: String
+)
+
+// Full-text index over session titles, kept in sync with `chat_sessions` by triggers
+@Fts4(contentEntity = ChatSession::class, tokenizer = FtsOptions.TOKENIZER_UNICODE61, prefix = [2, 3])
+@Entity(tableName = "chat_sessions_fts")
+data class ChatSessionFts(
+    val title: String
+)
+
+// A full-text hit before ranking: the row and its matchinfo(messages_fts, 'pcnx') statistics
+class MessageMatch(
+    val docid: Long,
+    val matchinfo: ByteArray
+)
+
+// A message found by full-text search; matched words in snippet are wrapped in the markers passed to the query
+data class MessageSearchResult(
+    val docid: Long,
+    val message_id: String,
+    val session_id: String,
+    val session_title: String,
+    val role: String,
+    val timestamp: Long,
+    val snippet: String
+)
+
+// A cheap fingerprint of a session's rows: a delete, insert, replaced row or edited text changes it
+data class MessageHistoryMarker(
+    val count: Int,
+    val last_timestamp: Long,
+    val content_length: Long
+)
+
+@Entity(
+    tableName = "response_cache",
+    indices = [androidx.room.Index(value = ["last_accessed"])]
+)
+data class ResponseCacheEntry(
+    @PrimaryKey val cache_key: String, // SHA-256 of prompt, image, trailing context, model and sampler
+    val response: String,
+    val model_id: String,
+    val created_at: Long,
+    val last_accessed: Long,
+    val hit_count: Int = 0,
+    val size_bytes: Int
+)
+
+@Entity(
+    tableName = "inference_metrics",
+    indices = [androidx.room.Index(value = ["timestamp"])]
+)
+data class InferenceMetric(
+    @PrimaryKey(autoGenerate = true) val id: Long = 0,
+    val backend: String, // "gemini" or "local"
+    val model_file: String,
+    val engine_backend: String? = null, // "GPU" or "CPU" for on-device records
+    val prompt_tokens: Int,
+    val output_tokens: Int,
+    val prefill_ms: Long, // Request sent to first token
+    val ttft_ms: Long, // User pressed send to first token, including queueing and history setup
+    val decode_tokens_per_sec: Double,
+    val has_image: Boolean,
+    val timestamp: Long
+)
+
 @Dao
 interface ChatDao {
     @Query("SELECT * FROM chat_sessions WHERE user_id = :userId ORDER BY last_updated DESC")
     suspend fun getAllSessions(userId: String): List<ChatSession>
 
+    @Query("SELECT * FROM chat_sessions WHERE id = :sessionId AND user_id = :userId")
+    suspend fun getSessionById(sessionId: String, userId: String): ChatSession?
+
+    @Query("SELECT * FROM chat_sessions WHERE id = :sessionId AND user_id = :userId")
+    fun observeSessionById(sessionId: String, userId: String): Flow<ChatSession?>
+
+    @Query("SELECT * FROM chat_sessions WHERE user_id = :userId ORDER BY last_updated DESC LIMIT 1")
+    suspend fun getLatestSession(userId: String): ChatSession?
+
+    @Query("SELECT * FROM chat_sessions WHERE user_id = :userId ORDER BY last_updated DESC")
+    fun pagingSessions(userId: String): PagingSource<Int, ChatSession>
+
     @Query("DELETE FROM chat_sessions WHERE user_id = :userId")
     suspend fun deleteAllSessions(userId: String)
 
     @Query("SELECT * FROM messages WHERE session_id = :sessionId ORDER BY timestamp ASC")
     suspend fun getMessagesForSession(sessionId: String): List<Message>
 
-    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    // Newest first, for a bottom-up list
+    @Query("SELECT * FROM messages WHERE session_id = :sessionId ORDER BY timestamp DESC")
+    fun pagingMessagesForSession(sessionId: String): PagingSource<Int, Message>
+
+    @Query("SELECT * FROM messages WHERE session_id = :sessionId ORDER BY timestamp DESC LIMIT :limit")
+    suspend fun getRecentMessages(sessionId: String, limit: Int): List<Message>
+
+    // Fingerprint of the session's rows, leaving out the newest [skipNewest] of them
+    @Query(
+        "SELECT COUNT(*) AS count, IFNULL(MAX(timestamp), 0) AS last_timestamp, " +
+            "CAST(TOTAL(LENGTH(content)) AS INTEGER) AS content_length FROM (" +
+            "SELECT timestamp, content FROM messages WHERE session_id = :sessionId " +
+            "ORDER BY timestamp DESC LIMIT -1 OFFSET :skipNewest)"
+    )
+    suspend fun getHistoryMarker(sessionId: String, skipNewest: Int = 0): MessageHistoryMarker
+
+    @Query("SELECT id FROM messages WHERE session_id = :sessionId")
+    suspend fun getMessageIds(sessionId: String): List<String>
+
+    // Upserts rather than REPLACE: REPLACE deletes the old row without firing the triggers that
+    // keep the full-text indices in sync
+    @Upsert
     suspend fun insertSession(session: ChatSession)
 
     @Update
     suspend fun updateSession(session: ChatSession)
 
-    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    @Upsert
     suspend fun insertMessage(message: Message)
+
+    @Upsert
+    suspend fun insertSessions(sessions: List<ChatSession>)
+
+    @Upsert
+    suspend fun insertMessages(messages: List<Message>)
+
+    // The reply and the session update of one turn commit together, with a single fsync
+    @Transaction
+    suspend fun commitTurn(messages: List<Message>, session: ChatSession) {
+        insertMessages(messages)
+        updateSession(session)
+    }
+
+    // Bulk write for imports and sync pulls; sessions go first for the foreign key
+    @Transaction
+    suspend fun importSessions(sessions: List<ChatSession>, messages: List<Message>) {
+        insertSessions(sessions)
+        insertMessages(messages)
+    }
+
+    @Query("UPDATE messages SET content = :content WHERE id = :messageId")
+    suspend fun updateMessageContent(messageId: String, content: String)
     
     @Query("DELETE FROM messages WHERE session_id IN (SELECT id FROM chat_sessions WHERE is_offline_only = 1) AND timestamp < :threshold")
     suspend fun pruneOfflineMessages(threshold: Long)
+
+    // The newest matches with their statistics. matchinfo() reads only the full-text index, so
+    // no message body is loaded here; ranking happens on the caller's side.
+    @Query(
+        "SELECT messages_fts.docid AS docid, matchinfo(messages_fts, 'pcnx') AS matchinfo " +
+            "FROM messages_fts " +
+            "JOIN messages m ON m.rowid = messages_fts.docid " +
+            "JOIN chat_sessions s ON s.id = m.session_id " +
+            "WHERE messages_fts MATCH :query AND s.user_id = :userId " +
+            "ORDER BY messages_fts.docid DESC LIMIT :limit"
+    )
+    suspend fun matchMessages(query: String, userId: String, limit: Int): List<MessageMatch>
+
+    // snippet() reads the message body back, so it only runs on the few rows already ranked
+    @Query(
+        "SELECT messages_fts.docid AS docid, m.id AS message_id, m.session_id AS session_id, " +
+            "s.title AS session_title, m.role AS role, m.timestamp AS timestamp, " +
+            "snippet(messages_fts, :matchStart, :matchEnd, '…', -1, 12) AS snippet " +
+            "FROM messages_fts " +
+            "JOIN messages m ON m.rowid = messages_fts.docid " +
+            "JOIN chat_sessions s ON s.id = m.session_id " +
+            "WHERE messages_fts MATCH :query AND messages_fts.docid IN (:docids)"
+    )
+    suspend fun messageSnippets(
+        query: String,
+        docids: List<Long>,
+        matchStart: String,
+        matchEnd: String
+    ): List<MessageSearchResult>
+
+    @Query(
+        "SELECT s.* FROM chat_sessions_fts " +
+            "JOIN chat_sessions s ON s.rowid = chat_sessions_fts.docid " +
+            "WHERE chat_sessions_fts MATCH :query AND s.user_id = :userId " +
+            "ORDER BY s.last_updated DESC LIMIT :limit"
+    )
+    suspend fun searchSessions(query: String, userId: String, limit: Int): List<ChatSession>
+}
+
+@Dao
+interface ResponseCacheDao {
+    @Query("SELECT * FROM response_cache WHERE cache_key = :key")
+    suspend fun get(key: String): ResponseCacheEntry?
+
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    suspend fun insert(entry: ResponseCacheEntry)
+
+    @Query("UPDATE response_cache SET last_accessed = :now, hit_count = hit_count + 1 WHERE cache_key = :key")
+    suspend fun touch(key: String, now: Long)
+
+    @Query("DELETE FROM response_cache WHERE created_at < :threshold")
+    suspend fun deleteExpired(threshold: Long)
+
+    @Query("SELECT COALESCE(SUM(size_bytes), 0) FROM response_cache")
+    suspend fun totalSizeBytes(): Long
+
+    @Query("DELETE FROM response_cache WHERE cache_key IN (SELECT cache_key FROM response_cache ORDER BY last_accessed ASC LIMIT :count)")
+    suspend fun deleteLeastRecentlyUsed(count: Int)
+
+    @Query("DELETE FROM response_cache")
+    suspend fun clear()
+}
+
+@Dao
+interface InferenceMetricDao {
+    @Insert
+    suspend fun insert(metric: InferenceMetric)
+
+    @Query("DELETE FROM inference_metrics WHERE id NOT IN (SELECT id FROM inference_metrics ORDER BY timestamp DESC LIMIT :keep)")
+    suspend fun trim(keep: Int)
+
+    @Query("SELECT * FROM inference_metrics ORDER BY timestamp DESC")
+    suspend fun getAll(): List<InferenceMetric>
 }
 
-@Database(entities = [ChatSession::class, Message::class], version = 3, exportSchema = false)
+@Database(
+    entities = [
+        ChatSession::class,
+        Message::class,
+        MessageFts::class,
+        ChatSessionFts::class,
+        ResponseCacheEntry::class,
+        InferenceMetric::class
+    ],
+    version = 8,
+    exportSchema = false
+)
 abstract class AppDatabase : RoomDatabase() {
     abstract fun chatDao(): ChatDao
+    abstract fun responseCacheDao(): ResponseCacheDao
+    abstract fun inferenceMetricDao(): InferenceMetricDao
+
+    companion object {
+        val MIGRATION_3_4 = object : Migration(3, 4) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `response_cache` (`cache_key` TEXT NOT NULL, `response` TEXT NOT NULL, " +
+                        "`model_id` TEXT NOT NULL, `created_at` INTEGER NOT NULL, `last_accessed` INTEGER NOT NULL, " +
+                        "`hit_count` INTEGER NOT NULL, `size_bytes` INTEGER NOT NULL, PRIMARY KEY(`cache_key`))"
+                )
+                db.execSQL("CREATE INDEX IF NOT EXISTS `index_response_cache_last_accessed` ON `response_cache` (`last_accessed`)")
+            }
+        }
+
+        val MIGRATION_4_5 = object : Migration(4, 5) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL(
+                    "CREATE TABLE IF NOT EXISTS `inference_metrics` (`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, " +
+                        "`backend` TEXT NOT NULL, `model_file` TEXT NOT NULL, `prompt_tokens` INTEGER NOT NULL, " +
+                        "`output_tokens` INTEGER NOT NULL, `prefill_ms` INTEGER NOT NULL, `ttft_ms` INTEGER NOT NULL, " +
+                        "`decode_tokens_per_sec` REAL NOT NULL, `has_image` INTEGER NOT NULL, `timestamp` INTEGER NOT NULL)"
+                )
+                db.execSQL("CREATE INDEX IF NOT EXISTS `index_inference_metrics_timestamp` ON `inference_metrics` (`timestamp`)")
+            }
+        }
+
+        val MIGRATION_5_6 = object : Migration(5, 6) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                // (session_id, timestamp) also covers lookups by session_id alone
+                db.execSQL("DROP INDEX IF EXISTS `index_messages_session_id`")
+                db.execSQL("CREATE INDEX IF NOT EXISTS `index_messages_session_id_timestamp` ON `messages` (`session_id`, `timestamp`)")
+                db.execSQL("CREATE INDEX IF NOT EXISTS `index_chat_sessions_user_id_last_updated` ON `chat_sessions` (`user_id`, `last_updated`)")
+            }
+        }
+
+        val MIGRATION_6_7 = object : Migration(6, 7) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                createFtsTable(db, "messages_fts", "messages", "content")
+                createFtsTable(db, "chat_sessions_fts", "chat_sessions", "title")
+            }
+        }
+
+        val MIGRATION_7_8 = object : Migration(7, 8) {
+            override fun migrate(db: SupportSQLiteDatabase) {
+                db.execSQL("ALTER TABLE `inference_metrics` ADD COLUMN `engine_backend` TEXT")
+            }
+        }
+
+        // External-content FTS4 table with the same sync triggers Room creates for a new database,
+        // then filled from the existing rows
+        private fun createFtsTable(db: SupportSQLiteDatabase, ftsTable: String, contentTable: String, column: String) {
+            db.execSQL(
+                "CREATE VIRTUAL TABLE IF NOT EXISTS `$ftsTable` USING FTS4(`$column` TEXT NOT NULL, " +
+                    "tokenize=unicode61, content=`$contentTable`, prefix=`2,3`)"
+            )
+            val triggerPrefix = "room_fts_content_sync_$ftsTable"
+            for (timing in listOf("BEFORE UPDATE", "BEFORE DELETE")) {
+                db.execSQL(
+                    "CREATE TRIGGER IF NOT EXISTS ${triggerPrefix}_${timing.replace(' ', '_')} $timing ON `$contentTable` " +
+                        "BEGIN DELETE FROM `$ftsTable` WHERE `docid`=OLD.`rowid`; END"
+                )
+            }
+            for (timing in listOf("AFTER UPDATE", "AFTER INSERT")) {
+                db.execSQL(
+                    "CREATE TRIGGER IF NOT EXISTS ${triggerPrefix}_${timing.replace(' ', '_')} $timing ON `$contentTable` " +
+                        "BEGIN INSERT INTO `$ftsTable`(`docid`, `$column`) VALUES (NEW.`rowid`, NEW.`$column`); END"
+                )
+            }
+            db.execSQL("INSERT INTO `$ftsTable`(`$ftsTable`) VALUES('rebuild')")
+        }
+    }
 }
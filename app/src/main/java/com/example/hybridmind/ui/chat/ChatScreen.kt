@@ -4,7 +4,6 @@ import androidx.compose.foundation.layout.*
 import androidx.compose.foundation.background
 import androidx.compose.foundation.clickable
 import androidx.compose.foundation.lazy.LazyColumn
-import androidx.compose.foundation.lazy.items
 import androidx.compose.foundation.lazy.rememberLazyListState
 import androidx.compose.material.icons.Icons
 import androidx.compose.material.icons.filled.*
@@ -13,9 +12,22 @@ import androidx.compose.foundation.shape.CircleShape
 import androidx.compose.runtime.*
 import androidx.compose.ui.Alignment
 import androidx.compose.ui.Modifier
+import androidx.compose.ui.text.AnnotatedString
+import androidx.compose.ui.text.SpanStyle
+import androidx.compose.ui.text.buildAnnotatedString
+import androidx.compose.ui.text.font.FontWeight
+import androidx.compose.ui.text.style.TextOverflow
+import androidx.compose.ui.text.withStyle
 import androidx.compose.ui.unit.dp
+import androidx.paging.cachedIn
+import androidx.paging.compose.LazyPagingItems
+import androidx.paging.compose.collectAsLazyPagingItems
+import androidx.paging.compose.itemKey
 import com.example.hybridmind.core.NetworkMonitor
 import com.example.hybridmind.data.ChatRepository
+import com.example.hybridmind.data.GenerationEvent
+import com.example.hybridmind.data.GenerationHandle
+import com.example.hybridmind.data.InferenceHost
 import com.example.hybridmind.data.local.ChatSession
 import com.example.hybridmind.data.local.Message
 import androidx.compose.ui.platform.LocalContext
@@ -25,6 +37,8 @@ import androidx.activity.result.contract.ActivityResultContracts
 import coil.compose.AsyncImage // Assuming Coil is available or using standard Image with Bitmap
 import android.graphics.BitmapFactory
 import android.net.Uri
+import kotlinx.coroutines.delay
+import kotlinx.coroutines.flow.flowOf
 import kotlinx.coroutines.launch
 import java.io.InputStream
 
@@ -39,15 +53,17 @@ fun ChatScreen(
     val scope = rememberCoroutineScope()
     val drawerState = rememberDrawerState(initialValue = DrawerValue.Closed)
     
-    var sessions by remember { mutableStateOf<List<ChatSession>>(emptyList()) }
     var currentSessionId by remember { mutableStateOf<String?>(null) }
-    var messages by remember { mutableStateOf<List<Message>>(emptyList()) }
     var userInput by remember { mutableStateOf("") }
     var selectedImageUri by remember { mutableStateOf<Uri?>(null) }
     var currentSessionImageData by remember { mutableStateOf<ByteArray?>(null) } // Persistent image context
     var isFirstImageSend by remember { mutableStateOf(true) } // Track if this is first time sending current image
     var fullScreenImagePath by remember { mutableStateOf<String?>(null) } // For full-screen viewer
     var isLoading by remember { mutableStateOf(false) }
+    var streamingText by remember { mutableStateOf<String?>(null) } // Live model reply while streaming
+    var streamingSince by remember { mutableStateOf(0L) } // Rows from this time on belong to the live reply
+    var activeGeneration by remember { mutableStateOf<GenerationHandle?>(null) } // For the Stop button
+    var generatingSessionId by remember { mutableStateOf<String?>(null) } // Session the live reply belongs to
     var errorMessage by remember { mutableStateOf<String?>(null) }
     var debugInfo by remember { mutableStateOf("Not started") }
     val context = LocalContext.current
@@ -70,27 +86,47 @@ fun ChatScreen(
     }
     
     val isOnline by networkMonitor.isOnline.collectAsState(initial = true)
+    val offlineModelState by chatRepository.offlineModelState.collectAsState()
 
-    // Load sessions and create default if needed
+    // Sessions and messages are paged from Room and refresh by themselves when rows change
+    val sessions = remember { chatRepository.pagedSessions().cachedIn(scope) }.collectAsLazyPagingItems()
+    // One pager follows the open session, so only that session's pages stay cached
+    val messages = remember {
+        chatRepository.pagedMessages(snapshotFlow { currentSessionId }).cachedIn(scope)
+    }.collectAsLazyPagingItems()
+
+    // Open the latest session, or create one if there is none
+    LaunchedEffect(Unit) {
+        currentSessionId = chatRepository.getLatestSession()?.id
+            ?: chatRepository.createNewSession("New Chat", false)
+    }
+
+    // Bring in chats from other devices; the paged lists pick the rows up from Room
     LaunchedEffect(Unit) {
-        sessions = chatRepository.getAllSessions()
-        if (sessions.isEmpty()) {
-            val sessionId = chatRepository.createNewSession("New Chat", false)
-            currentSessionId = sessionId
-            sessions = chatRepository.getAllSessions()
-        } else {
-            currentSessionId = sessions.first().id
+        try {
+            chatRepository.pullFromCloud()
+        } catch (e: Exception) {
+            android.util.Log.w("ChatScreen", "Sync pull failed", e)
         }
     }
 
-    // Load messages when session changes
-    LaunchedEffect(currentSessionId) {
-        currentSessionId?.let {
-            messages = chatRepository.getMessagesForSession(it)
-            debugInfo = "Loaded ${messages.size} messages for session $it"
+    // Drawer search; a new keystroke cancels the pending query, which debounces it
+    var searchQuery by remember { mutableStateOf("") }
+    var searchResults by remember { mutableStateOf<ChatRepository.SearchResults?>(null) }
+    LaunchedEffect(searchQuery) {
+        if (searchQuery.isBlank()) {
+            searchResults = null
+            return@LaunchedEffect
         }
+        delay(SEARCH_DEBOUNCE_MS)
+        searchResults = chatRepository.searchHistory(searchQuery)
     }
 
+    // Follows the open session in Room, so renames and sync pulls show without a reload
+    val currentSession by remember(currentSessionId) {
+        currentSessionId?.let { chatRepository.observeSession(it) } ?: flowOf(null)
+    }.collectAsState(initial = null)
+
     ModalNavigationDrawer(
         drawerState = drawerState,
         drawerContent = {
@@ -98,6 +134,9 @@ fun ChatScreen(
                 ChatDrawerContent(
                     sessions = sessions,
                     currentSessionId = currentSessionId,
+                    searchQuery = searchQuery,
+                    onSearchQueryChange = { searchQuery = it },
+                    searchResults = searchResults,
                     onSessionClick = { sessionId ->
                         currentSessionId = sessionId
                         scope.launch { drawerState.close() }
@@ -106,7 +145,6 @@ fun ChatScreen(
                         scope.launch {
                             val sessionId = chatRepository.createNewSession("New Chat", !isOnline)
                             currentSessionId = sessionId
-                            sessions = chatRepository.getAllSessions()
                             drawerState.close()
                         }
                     },
@@ -123,7 +161,12 @@ fun ChatScreen(
                         Column {
                             Text("HybridMind")
                             Text(
-                                text = if (isOnline) "Online - Gemini" else "Offline - Local",
+                                text = when {
+                                    isOnline -> "Online - Gemini"
+                                    offlineModelState is InferenceHost.EngineState.Loading -> "Offline - Loading model…"
+                                    offlineModelState is InferenceHost.EngineState.Failed -> "Offline - Model unavailable"
+                                    else -> "Offline - Local"
+                                },
                                 style = MaterialTheme.typography.bodySmall,
                                 color = if (isOnline) {
                                     MaterialTheme.colorScheme.primary
@@ -144,17 +187,25 @@ fun ChatScreen(
                 )
             }
         ) { padding ->
+            // The live reply, its spinner and the Stop button only show in the session generating it
+            val showsGeneration = generatingSessionId != null && generatingSessionId == currentSessionId
             ChatContent(
                 messages = messages,
+                streamingText = if (showsGeneration) streamingText else null,
+                streamingSince = streamingSince,
                 userInput = userInput,
                 onUserInputChange = { userInput = it },
-                isLoading = isLoading,
+                isLoading = isLoading && showsGeneration,
                 onSendMessage = {
                     debugInfo = "CALLBACK TRIGGERED!"
-                    if (currentSessionId != null) {
+                    val sessionId = currentSessionId
+                    if (sessionId != null && isLoading) {
+                        debugInfo = "A reply is still being generated in another chat"
+                    } else if (sessionId != null) {
                         scope.launch {
                             try {
                                 isLoading = true
+                                generatingSessionId = sessionId
                                 errorMessage = null
                                 debugInfo = "Sending message..."
                                 val msg = if (userInput.isBlank()) {
@@ -170,8 +221,8 @@ fun ChatScreen(
                                 if (msg.isBlank() && imageData == null) return@launch
 
                                 // Only save image to message on first send, but always send to AI for context
-                                chatRepository.sendMessage(
-                                    sessionId = currentSessionId!!,
+                                chatRepository.saveUserMessage(
+                                    sessionId = sessionId,
                                     userMessage = msg,
                                     imageData = imageData,
                                     saveImageToMessage = isFirstImageSend && imageData != null
@@ -182,24 +233,53 @@ fun ChatScreen(
                                     isFirstImageSend = false
                                 }
                                 
-                                debugInfo = "Message sent, reloading..."
-                                messages = chatRepository.getMessagesForSession(currentSessionId!!)
-                                debugInfo = "Reloaded: ${messages.size} messages"
                                 userInput = ""
                                 selectedImageUri = null // Clear preview but keep context
+                                
+                                // The user's message shows up through paging; stream the reply into a live bubble
+                                streamingSince = System.currentTimeMillis()
+                                streamingText = ""
+                                val generation = chatRepository.startGeneration(
+                                    sessionId = sessionId,
+                                    prompt = msg,
+                                    imageData = imageData
+                                )
+                                activeGeneration = generation
+                                generation.events.collect { event ->
+                                    when (event) {
+                                        is GenerationEvent.FirstToken -> debugInfo = "First token after ${event.latencyMs} ms"
+                                        is GenerationEvent.Chunk -> streamingText = (streamingText ?: "") + event.text
+                                        is GenerationEvent.Progress -> debugInfo = "Streaming: ${event.charCount} chars in ${event.elapsedMs} ms"
+                                        is GenerationEvent.Complete -> debugInfo = "Reply complete in ${event.totalMs} ms"
+                                    }
+                                }
                             } catch (e: Exception) {
                                 e.printStackTrace()
                                 errorMessage = "ERROR: ${e.javaClass.simpleName}: ${e.message}"
                                 debugInfo = "ERROR: ${e.javaClass.simpleName}: ${e.message}"
                             } finally {
                                 isLoading = false
+                                streamingText = null
+                                activeGeneration = null
+                                generatingSessionId = null
                             }
                         }
                     } else {
                         debugInfo = "ERROR: No session ID!"  
                     }
                 },
+                onStopGeneration = {
+                    // Stops decoding / the HTTP call; the partial reply is saved by the repository
+                    activeGeneration?.cancel()
+                    debugInfo = "Generation stopped"
+                },
                 onPickImage = {
+                    // A photo in a chat that will run on-device needs the vision encoder; load it
+                    // while the user is still choosing
+                    val isPrivateSession = currentSession?.is_offline_only == true
+                    if (!isOnline || isPrivateSession) {
+                        chatRepository.prewarmVision()
+                    }
                      imagePickerLauncher.launch(
                         PickVisualMediaRequest(ActivityResultContracts.PickVisualMedia.ImageOnly)
                     )
@@ -256,8 +336,11 @@ fun ChatScreen(
 
 @Composable
 fun ChatDrawerContent(
-    sessions: List<ChatSession>,
+    sessions: LazyPagingItems<ChatSession>,
     currentSessionId: String?,
+    searchQuery: String,
+    onSearchQueryChange: (String) -> Unit,
+    searchResults: ChatRepository.SearchResults?,
     onSessionClick: (String) -> Unit,
     onNewChat: () -> Unit,
     onSignOut: () -> Unit,
@@ -292,12 +375,80 @@ fun ChatDrawerContent(
              Text("Settings")
         }
 
+        OutlinedTextField(
+            value = searchQuery,
+            onValueChange = onSearchQueryChange,
+            modifier = Modifier.fillMaxWidth(),
+            placeholder = { Text("Search chats") },
+            leadingIcon = { Icon(Icons.Default.Search, contentDescription = null) },
+            trailingIcon = {
+                if (searchQuery.isNotEmpty()) {
+                    IconButton(onClick = { onSearchQueryChange("") }) {
+                        Icon(Icons.Default.Clear, contentDescription = "Clear search")
+                    }
+                }
+            },
+            singleLine = true
+        )
+
         Spacer(modifier = Modifier.height(16.dp))
 
         LazyColumn(
             modifier = Modifier.weight(1f)
         ) {
-            items(sessions) { session ->
+            if (searchQuery.isNotBlank() && searchResults != null) {
+                if (searchResults.sessions.isEmpty() && searchResults.messages.isEmpty()) {
+                    item {
+                        Text(
+                            text = "No matches",
+                            style = MaterialTheme.typography.bodyMedium,
+                            modifier = Modifier.padding(16.dp)
+                        )
+                    }
+                }
+                items(
+                    count = searchResults.sessions.size,
+                    key = { "session-" + searchResults.sessions[it].id }
+                ) { index ->
+                    val session = searchResults.sessions[index]
+                    NavigationDrawerItem(
+                        label = { Text(session.title) },
+                        selected = session.id == currentSessionId,
+                        onClick = { onSessionClick(session.id) }
+                    )
+                }
+                items(
+                    count = searchResults.messages.size,
+                    key = { "message-" + searchResults.messages[it].message_id }
+                ) { index ->
+                    val result = searchResults.messages[index]
+                    NavigationDrawerItem(
+                        label = {
+                            Column {
+                                Text(
+                                    text = result.session_title,
+                                    style = MaterialTheme.typography.bodySmall,
+                                    color = MaterialTheme.colorScheme.primary
+                                )
+                                Text(
+                                    text = highlightSnippet(result.snippet),
+                                    maxLines = 2,
+                                    overflow = TextOverflow.Ellipsis
+                                )
+                            }
+                        },
+                        selected = false,
+                        onClick = { onSessionClick(result.session_id) }
+                    )
+                }
+                return@LazyColumn
+            }
+
+            items(
+                count = sessions.itemCount,
+                key = sessions.itemKey { it.id }
+            ) { index ->
+                val session = sessions[index] ?: return@items
                 NavigationDrawerItem(
                     label = {
                         Column {
@@ -330,13 +481,40 @@ fun ChatDrawerContent(
     }
 }
 
+// Bolds the words the search query matched, as marked by the repository
+private fun highlightSnippet(snippet: String): AnnotatedString = buildAnnotatedString {
+    var index = 0
+    while (index < snippet.length) {
+        val start = snippet.indexOf(ChatRepository.SNIPPET_MATCH_START, index)
+        val end = if (start >= 0) snippet.indexOf(ChatRepository.SNIPPET_MATCH_END, start) else -1
+        if (start < 0 || end < 0) {
+            append(
+                snippet.substring(index)
+                    .replace(ChatRepository.SNIPPET_MATCH_START, "")
+                    .replace(ChatRepository.SNIPPET_MATCH_END, "")
+            )
+            break
+        }
+        append(snippet.substring(index, start))
+        withStyle(SpanStyle(fontWeight = FontWeight.Bold)) {
+            append(snippet.substring(start + 1, end))
+        }
+        index = end + 1
+    }
+}
+
+private const val SEARCH_DEBOUNCE_MS = 250L
+
 @Composable
 fun ChatContent(
-    messages: List<Message>,
+    messages: LazyPagingItems<Message>,
+    streamingText: String? = null,
+    streamingSince: Long = 0L,
     userInput: String,
     onUserInputChange: (String) -> Unit,
     isLoading: Boolean,
     onSendMessage: () -> Unit,
+    onStopGeneration: () -> Unit = {},
     onPickImage: () -> Unit,
     selectedImageUri: Uri?,
     onRemoveImage: () -> Unit,
@@ -347,9 +525,15 @@ fun ChatContent(
 ) {
     val listState = rememberLazyListState()
 
-    LaunchedEffect(messages.size) {
-        if (messages.isNotEmpty()) {
-            listState.animateScrollToItem(messages.size - 1)
+    // The list is laid out bottom-up, so item 0 is the newest and the bottom of the chat. Follow
+    // it only when a newer message or the live bubble arrives: loading an older page while the
+    // user reads back also grows the list and must not pull them down.
+    val newestMessageId = if (messages.itemCount > 0) messages.peek(0)?.id else null
+    val showsLiveBubble = !streamingText.isNullOrEmpty()
+
+    LaunchedEffect(newestMessageId, showsLiveBubble) {
+        if (newestMessageId != null || showsLiveBubble) {
+            listState.animateScrollToItem(0)
         }
     }
 
@@ -363,7 +547,7 @@ fun ChatContent(
                 modifier = Modifier.fillMaxWidth()
             ) {
                 Text(
-                    text = "DEBUG: $debugInfo | Messages: ${messages.size} | Loading: $isLoading",
+                    text = "DEBUG: $debugInfo | Messages: ${messages.itemCount} | Loading: $isLoading",
                     modifier = Modifier.padding(8.dp),
                     style = MaterialTheme.typography.bodySmall
                 )
@@ -376,23 +560,48 @@ fun ChatContent(
             modifier = Modifier
                 .weight(1f)
                 .fillMaxWidth(),
+            reverseLayout = true,
             contentPadding = PaddingValues(16.dp),
-            verticalArrangement = Arrangement.spacedBy(8.dp)
+            verticalArrangement = Arrangement.spacedBy(8.dp, Alignment.Bottom)
         ) {
-            items(messages) { message ->
-                MessageBubble(
-                    message = message,
-                    onImageClick = onImageClick
-                )
-            }
-            
-            if (isLoading) {
+            // Bottom-up: the first items declared are the lowest on screen
+            if (isLoading && streamingText.isNullOrEmpty()) {
                 item {
                     CircularProgressIndicator(
                         modifier = Modifier.padding(16.dp)
                     )
                 }
             }
+
+            // Live model bubble, filled chunk by chunk
+            if (!streamingText.isNullOrEmpty()) {
+                item {
+                    MessageBubble(
+                        message = Message(
+                            id = "streaming",
+                            session_id = "",
+                            role = "model",
+                            content = streamingText,
+                            timestamp = System.currentTimeMillis()
+                        )
+                    )
+                }
+            }
+
+            items(
+                count = messages.itemCount,
+                key = messages.itemKey { it.id }
+            ) { index ->
+                val message = messages[index] ?: return@items
+                // The partial reply saved while streaming is already shown by the live bubble
+                if (streamingText != null && message.role == "model" && message.timestamp >= streamingSince) {
+                    return@items
+                }
+                MessageBubble(
+                    message = message,
+                    onImageClick = onImageClick
+                )
+            }
         }
 
         // Input area
@@ -469,11 +678,17 @@ fun ChatContent(
 
                     Spacer(modifier = Modifier.width(8.dp))
 
-                    IconButton(
-                        onClick = onSendMessage,
-                        enabled = !isLoading && (userInput.isNotBlank() || selectedImageUri != null)
-                    ) {
-                        Icon(Icons.Default.Send, contentDescription = "Send")
+                    if (isLoading) {
+                        IconButton(onClick = onStopGeneration) {
+                            Icon(Icons.Default.Stop, contentDescription = "Stop")
+                        }
+                    } else {
+                        IconButton(
+                            onClick = onSendMessage,
+                            enabled = userInput.isNotBlank() || selectedImageUri != null
+                        ) {
+                            Icon(Icons.Default.Send, contentDescription = "Send")
+                        }
                     }
                 }
             }
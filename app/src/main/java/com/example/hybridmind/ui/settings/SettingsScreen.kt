@@ -16,6 +16,7 @@ import androidx.compose.ui.unit.dp
 import com.example.hybridmind.data.ChatRepository
 import com.example.hybridmind.data.DownloadProgress
 import com.example.hybridmind.data.DownloadStatus
+import com.example.hybridmind.data.InferenceMetrics
 import com.example.hybridmind.data.ModelDownloader
 import com.example.hybridmind.ui.download.ModelOptionCard
 import com.example.hybridmind.ui.download.getAvailableRAM
@@ -39,6 +40,7 @@ fun SettingsScreen(
     // Model Selection State
     var selectedModel by remember { mutableStateOf<String?>(null) }
     var downloadProgress by remember { mutableStateOf<DownloadProgress?>(null) }
+    var switchError by remember { mutableStateOf<String?>(null) }
     
     // Delete Dialog State
     var showDeleteDialog by remember { mutableStateOf(false) }
@@ -48,6 +50,15 @@ fun SettingsScreen(
     var showDeleteAccountDialog by remember { mutableStateOf(false) }
     var isDeletingAccount by remember { mutableStateOf(false) }
 
+    // Inference State
+    var hedgedModeEnabled by remember { mutableStateOf(chatRepository.isHedgedModeEnabled()) }
+    var inferenceMetrics by remember { mutableStateOf<List<InferenceMetrics.BackendSummary>>(emptyList()) }
+    val responseCacheStats = remember { chatRepository.getResponseCacheStats() }
+
+    LaunchedEffect(Unit) {
+        inferenceMetrics = chatRepository.getInferenceMetrics()
+    }
+
     val availableRamGB = getAvailableRAM(context)
     val canUseAdvanced = availableRamGB >= 8
 
@@ -135,13 +146,14 @@ fun SettingsScreen(
                         selectedModel?.let { model ->
                             scope.launch {
                                 // If downloaded
+                                switchError = null
                                 if (modelDownloader.isModelDownloaded(model, "litertlm")) {
                                     try {
                                         val modelPath = modelDownloader.getModelPath(model, "litertlm")
-                                        chatRepository.initializeOfflineModel(modelPath)
+                                        chatRepository.switchOfflineModel(modelPath)
                                         onModelSwitched()
                                     } catch (e: Exception) {
-                                        // Handle error
+                                        switchError = e.message
                                     }
                                 } else { 
                                     // Not downloaded
@@ -156,10 +168,11 @@ fun SettingsScreen(
                                         if (progress.status == DownloadStatus.COMPLETED) {
                                             try {
                                                 val modelPath = modelDownloader.getModelPath(model, "litertlm")
-                                                chatRepository.initializeOfflineModel(modelPath)
+                                                chatRepository.switchOfflineModel(modelPath)
                                                 onModelSwitched()
                                                 downloadProgress = null
                                             } catch (e: Exception) {
+                                                 switchError = e.message
                                                  downloadProgress = DownloadProgress(DownloadStatus.FAILED)
                                             }
                                         }
@@ -178,8 +191,64 @@ fun SettingsScreen(
                     }
                     Text(label)
                 }
+
+                switchError?.let { error ->
+                    Text(
+                        text = error,
+                        style = MaterialTheme.typography.bodySmall,
+                        color = MaterialTheme.colorScheme.error
+                    )
+                }
+            }
+
+            HorizontalDivider()
+
+            // Section: Inference
+            Text(
+                text = "Inference",
+                style = MaterialTheme.typography.titleLarge,
+                color = MaterialTheme.colorScheme.primary
+            )
+
+            Row(
+                modifier = Modifier.fillMaxWidth(),
+                verticalAlignment = Alignment.CenterVertically
+            ) {
+                Column(modifier = Modifier.weight(1f)) {
+                    Text("Hedged hybrid mode", style = MaterialTheme.typography.bodyLarge)
+                    Text(
+                        text = "Start the on-device model when Gemini is slow to respond. Private chats stay offline.",
+                        style = MaterialTheme.typography.bodySmall,
+                        color = MaterialTheme.colorScheme.onSurfaceVariant
+                    )
+                }
+                Switch(
+                    checked = hedgedModeEnabled,
+                    onCheckedChange = {
+                        hedgedModeEnabled = it
+                        chatRepository.setHedgedModeEnabled(it)
+                    }
+                )
             }
 
+            Text("Performance", style = MaterialTheme.typography.bodyLarge)
+            if (inferenceMetrics.isEmpty()) {
+                Text(
+                    text = "No generations recorded yet.",
+                    style = MaterialTheme.typography.bodySmall,
+                    color = MaterialTheme.colorScheme.onSurfaceVariant
+                )
+            }
+            inferenceMetrics.forEach { summary ->
+                InferenceMetricsRow(summary)
+            }
+            Text(
+                text = "Response cache hit rate: ${(responseCacheStats.hitRate * 100).toInt()}% " +
+                    "(${responseCacheStats.hits} of ${responseCacheStats.hits + responseCacheStats.misses})",
+                style = MaterialTheme.typography.bodySmall,
+                color = MaterialTheme.colorScheme.onSurfaceVariant
+            )
+
             HorizontalDivider()
 
             // Section: Data
@@ -332,3 +401,34 @@ fun SettingsScreen(
         )
     }
 }
+
+@Composable
+private fun InferenceMetricsRow(summary: InferenceMetrics.BackendSummary) {
+    Card(modifier = Modifier.fillMaxWidth()) {
+        Column(modifier = Modifier.padding(12.dp)) {
+            Text(
+                text = "${summary.backend.replaceFirstChar { it.uppercase() }} · ${summary.modelFile}" +
+                    "${summary.engineBackend?.let { " ($it)" } ?: ""} · ${summary.samples} replies",
+                style = MaterialTheme.typography.titleSmall
+            )
+            Text(
+                text = "First token p50 ${summary.ttftP50Ms} ms · p95 ${summary.ttftP95Ms} ms",
+                style = MaterialTheme.typography.bodySmall
+            )
+            Text(
+                text = "Prefill p50 ${summary.prefillP50Ms} ms · p95 ${summary.prefillP95Ms} ms",
+                style = MaterialTheme.typography.bodySmall
+            )
+            Text(
+                text = "Decode p50 ${"%.1f".format(summary.decodeTokensPerSecP50)} tok/s · " +
+                    "p5 ${"%.1f".format(summary.decodeTokensPerSecP5)} tok/s",
+                style = MaterialTheme.typography.bodySmall
+            )
+            Text(
+                text = "Reply p50 ${summary.outputTokensP50} tokens · images ${(summary.imageShare * 100).toInt()}%",
+                style = MaterialTheme.typography.bodySmall,
+                color = MaterialTheme.colorScheme.onSurfaceVariant
+            )
+        }
+    }
+}
@@ -1,10 +1,9 @@
 package com.example.hybridmind.workers
 
 import android.content.Context
-import androidx.room.Room
 import androidx.work.CoroutineWorker
 import androidx.work.WorkerParameters
-import com.example.hybridmind.data.local.AppDatabase
+import com.example.hybridmind.HybridMindApplication
 import java.util.concurrent.TimeUnit
 
 class AutoPruneWorker(
@@ -14,17 +13,13 @@ class AutoPruneWorker(
 
     override suspend fun doWork(): Result {
         return try {
-            val database = Room.databaseBuilder(
-                applicationContext,
-                AppDatabase::class.java,
-                "hybridmind_database"
-            ).build()
+            // Share the app's database instance instead of opening a second connection pool
+            val database = (applicationContext as HybridMindApplication).database
 
             // Delete offline messages older than 90 days
             val ninetyDaysAgo = System.currentTimeMillis() - TimeUnit.DAYS.toMillis(90)
             database.chatDao().pruneOfflineMessages(ninetyDaysAgo)
 
-            database.close()
             Result.success()
         } catch (e: Exception) {
             Result.failure()
@@ -0,0 +1,155 @@
+package com.example.hybridmind.data
+
+import com.example.hybridmind.data.CircuitBreaker.Failure
+import com.example.hybridmind.data.CircuitBreaker.State
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+class CircuitBreakerTest {
+
+    private var now = 0L
+    private val breaker = CircuitBreaker("test", clock = { now })
+
+    @Test
+    fun opensAfterConsecutiveFailures() {
+        repeat(2) { fail(Failure.TIMEOUT) }
+        assertEquals(State.CLOSED, breaker.state())
+
+        fail(Failure.TIMEOUT)
+
+        assertEquals(State.OPEN, breaker.state())
+        assertNull(breaker.tryAcquire())
+    }
+
+    @Test
+    fun successResetsTheConsecutiveCount() {
+        repeat(4) { succeed() }
+        fail(Failure.SERVER)
+        fail(Failure.SERVER)
+        succeed()
+        fail(Failure.SERVER)
+
+        assertEquals(State.CLOSED, breaker.state())
+    }
+
+    @Test
+    fun opensOnFailureRate() {
+        succeed()
+        fail(Failure.SERVER)
+        succeed()
+        assertEquals(State.CLOSED, breaker.state())
+
+        fail(Failure.SERVER)
+
+        assertEquals(State.OPEN, breaker.state())
+    }
+
+    @Test
+    fun opensAtOnceOnQuotaOrNetworkFailures() {
+        fail(Failure.QUOTA)
+        assertEquals(State.OPEN, breaker.state())
+
+        val other = CircuitBreaker("other", clock = { now })
+        other.onFailure(other.tryAcquire()!!, Failure.NETWORK)
+        assertEquals(State.OPEN, other.state())
+    }
+
+    @Test
+    fun halfOpensAfterTheCooldownAndLetsOneProbeThrough() {
+        fail(Failure.QUOTA)
+        now += 29_999
+        assertEquals(State.OPEN, breaker.state())
+
+        now += 1
+        assertEquals(State.HALF_OPEN, breaker.state())
+        val probe = breaker.tryAcquire()
+        assertNotNull(probe)
+        assertTrue(probe!!.isProbe)
+        assertNull(breaker.tryAcquire())
+
+        breaker.onSuccess(probe)
+
+        assertEquals(State.CLOSED, breaker.state())
+        assertNotNull(breaker.tryAcquire())
+    }
+
+    @Test
+    fun failedProbeReopensWithADoubledCooldown() {
+        fail(Failure.QUOTA)
+        now += 30_000
+        breaker.onFailure(breaker.tryAcquire()!!, Failure.SERVER)
+        assertEquals(State.OPEN, breaker.state())
+
+        now += 30_000
+        assertEquals(State.OPEN, breaker.state())
+        now += 30_000
+        assertEquals(State.HALF_OPEN, breaker.state())
+    }
+
+    @Test
+    fun cooldownResetsAfterASuccessfulProbe() {
+        fail(Failure.QUOTA)
+        now += 30_000
+        breaker.onFailure(breaker.tryAcquire()!!, Failure.SERVER)
+        now += 60_000
+        breaker.onSuccess(breaker.tryAcquire()!!)
+
+        fail(Failure.QUOTA)
+        now += 30_000
+
+        assertEquals(State.HALF_OPEN, breaker.state())
+    }
+
+    @Test
+    fun outcomesFromAnEarlierEpochAreIgnored() {
+        val first = breaker.tryAcquire()!!
+        val second = breaker.tryAcquire()!!
+        val third = breaker.tryAcquire()!!
+
+        breaker.onFailure(first, Failure.NETWORK)
+        now += 30_000
+        val probe = breaker.tryAcquire()!!
+        // Requests issued before the outage settle late and must not decide the probe
+        breaker.onSuccess(second)
+        breaker.onFailure(third, Failure.SERVER)
+
+        assertEquals(State.HALF_OPEN, breaker.state())
+        assertNull(breaker.tryAcquire())
+        breaker.onSuccess(probe)
+        assertEquals(State.CLOSED, breaker.state())
+    }
+
+    @Test
+    fun abandonedProbeFreesTheSlot() {
+        fail(Failure.QUOTA)
+        now += 30_000
+        val probe = breaker.tryAcquire()!!
+        assertNull(breaker.tryAcquire())
+
+        breaker.onAbandoned(probe)
+
+        assertEquals(State.HALF_OPEN, breaker.state())
+        assertNotNull(breaker.tryAcquire())
+    }
+
+    @Test
+    fun settlingAPermitTwiceCountsOnce() {
+        val permit = breaker.tryAcquire()!!
+        breaker.onFailure(permit, Failure.SERVER)
+        breaker.onFailure(permit, Failure.SERVER)
+        fail(Failure.SERVER)
+
+        assertEquals(State.CLOSED, breaker.state())
+    }
+
+    private fun succeed() {
+        breaker.onSuccess(breaker.tryAcquire()!!)
+    }
+
+    private fun fail(failure: Failure) {
+        breaker.onFailure(breaker.tryAcquire()!!, failure)
+    }
+}
@@ -0,0 +1,201 @@
+package com.example.hybridmind.data
+
+import com.google.ai.edge.litertlm.Backend
+import kotlinx.coroutines.runBlocking
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+// Probing runs against fake engines, so the CPU fallback is covered on machines without a GPU
+class EngineBackendSelectorTest {
+
+    private class FakeEngine(val backend: Backend) {
+        var closed = false
+        var warmedUp = false
+    }
+
+    private class FakeEngines : EngineBackendSelector.EngineFactory<FakeEngine> {
+        val failingBuilds = mutableSetOf<Backend>()
+        val tokensPerSecond = mutableMapOf<Backend, Double>() // Missing: the benchmark fails
+        val built = mutableListOf<FakeEngine>()
+        var benchmarks = 0
+
+        override fun build(modelPath: String, backend: Backend, withVision: Boolean): FakeEngine {
+            if (backend in failingBuilds) throw IllegalStateException("$backend unavailable")
+            return FakeEngine(backend).also { built += it }
+        }
+
+        override suspend fun benchmark(engine: FakeEngine): Double {
+            benchmarks++
+            return tokensPerSecond[engine.backend] ?: throw IllegalStateException("benchmark failed")
+        }
+
+        override suspend fun warmUp(engine: FakeEngine) {
+            engine.warmedUp = true
+        }
+
+        override fun close(engine: FakeEngine) {
+            engine.closed = true
+        }
+    }
+
+    private class MemoryChoices : EngineBackendSelector.ChoiceStore {
+        val saved = mutableMapOf<String, String>()
+        override fun engineBackend(modelFingerprint: String) = saved[modelFingerprint]
+        override fun setEngineBackend(modelFingerprint: String, backend: String) {
+            saved[modelFingerprint] = backend
+        }
+        override fun clearEngineBackend(modelFingerprint: String) {
+            saved.remove(modelFingerprint)
+        }
+    }
+
+    private val engines = FakeEngines()
+    private val choices = MemoryChoices()
+    private val selector = EngineBackendSelector(choices, engines)
+
+    private fun create() = runBlocking { selector.createEngine("model.litertlm", FINGERPRINT) }
+
+    @Test
+    fun fastGpuWins() {
+        engines.tokensPerSecond[Backend.GPU] = 20.0
+
+        val (engine, selection) = create()
+
+        assertEquals(Backend.GPU, engine.backend)
+        assertEquals(Backend.GPU, selection.backend)
+        assertTrue(selection.visionCapable)
+        assertEquals(listOf(Backend.GPU), engines.built.map { it.backend })
+        assertEquals(Backend.GPU.name, choices.saved[FINGERPRINT])
+    }
+
+    @Test
+    fun gpuInitFailureFallsBackToCpu() {
+        engines.failingBuilds += Backend.GPU
+        engines.tokensPerSecond[Backend.CPU] = 6.0
+
+        val (engine, selection) = create()
+
+        assertEquals(Backend.CPU, engine.backend)
+        assertEquals(6.0, selection.tokensPerSecond!!, 0.0)
+        assertFalse(selection.visionCapable)
+        assertEquals(Backend.CPU.name, choices.saved[FINGERPRINT])
+    }
+
+    @Test
+    fun gpuBenchmarkFailureClosesTheEngineAndFallsBackToCpu() {
+        engines.tokensPerSecond[Backend.CPU] = 6.0
+
+        val (engine, _) = create()
+
+        assertEquals(Backend.CPU, engine.backend)
+        val gpu = engines.built.first { it.backend == Backend.GPU }
+        assertTrue(gpu.closed)
+    }
+
+    @Test
+    fun slowGpuLosesToAFasterCpu() {
+        engines.tokensPerSecond[Backend.GPU] = 2.0
+        engines.tokensPerSecond[Backend.CPU] = 3.0
+
+        val (engine, _) = create()
+
+        assertEquals(Backend.CPU, engine.backend)
+        assertTrue(engines.built.first { it.backend == Backend.GPU }.closed)
+        assertEquals(Backend.CPU.name, choices.saved[FINGERPRINT])
+    }
+
+    @Test
+    fun slowGpuIsKeptWhenTheCpuIsSlowerStill() {
+        engines.tokensPerSecond[Backend.GPU] = 2.0
+        engines.tokensPerSecond[Backend.CPU] = 1.0
+
+        val (engine, selection) = create()
+
+        // The benchmarked GPU engine was closed before the CPU ran, so a fresh one is built
+        assertEquals(Backend.GPU, engine.backend)
+        assertFalse(engine.closed)
+        assertEquals(2.0, selection.tokensPerSecond!!, 0.0)
+        assertEquals(listOf(Backend.GPU, Backend.CPU, Backend.GPU), engines.built.map { it.backend })
+        assertTrue(engines.built.first { it.backend == Backend.CPU }.closed)
+        assertEquals(Backend.GPU.name, choices.saved[FINGERPRINT])
+    }
+
+    @Test
+    fun failsWhenNoBackendWorks() {
+        engines.failingBuilds += listOf(Backend.GPU, Backend.CPU)
+
+        val error = runCatching { create() }.exceptionOrNull()
+
+        assertTrue(error is Exception)
+        assertNull(choices.saved[FINGERPRINT])
+    }
+
+    @Test
+    fun savedChoiceSkipsProbing() {
+        choices.saved[FINGERPRINT] = Backend.CPU.name
+
+        val (engine, selection) = create()
+
+        assertEquals(Backend.CPU, engine.backend)
+        assertTrue(engine.warmedUp)
+        assertNull(selection.tokensPerSecond)
+        assertEquals(0, engines.benchmarks)
+    }
+
+    @Test
+    fun failingSavedChoiceIsClearedAndProbedAgain() {
+        choices.saved[FINGERPRINT] = Backend.GPU.name
+        engines.failingBuilds += Backend.GPU
+        engines.tokensPerSecond[Backend.CPU] = 6.0
+
+        val (engine, _) = create()
+
+        assertEquals(Backend.CPU, engine.backend)
+        assertEquals(Backend.CPU.name, choices.saved[FINGERPRINT])
+    }
+
+    @Test
+    fun contendedCreateTakesTheGpuWithoutBenchmarkingOrSaving() {
+        engines.tokensPerSecond[Backend.GPU] = 2.0
+
+        val (engine, selection) = runBlocking {
+            selector.createEngine("model.litertlm", FINGERPRINT, contended = true)
+        }
+
+        assertEquals(Backend.GPU, engine.backend)
+        assertNull(selection.tokensPerSecond)
+        assertEquals(0, engines.benchmarks)
+        assertNull(choices.saved[FINGERPRINT])
+    }
+
+    @Test
+    fun contendedCreateFallsBackToCpuWhenTheGpuCannotStart() {
+        engines.failingBuilds += Backend.GPU
+
+        val (engine, _) = runBlocking {
+            selector.createEngine("model.litertlm", FINGERPRINT, contended = true)
+        }
+
+        assertEquals(Backend.CPU, engine.backend)
+        assertNull(choices.saved[FINGERPRINT])
+    }
+
+    @Test
+    fun contendedCreateStillUsesTheSavedChoice() {
+        choices.saved[FINGERPRINT] = Backend.CPU.name
+
+        val (engine, _) = runBlocking {
+            selector.createEngine("model.litertlm", FINGERPRINT, contended = true)
+        }
+
+        assertEquals(Backend.CPU, engine.backend)
+        assertEquals(Backend.CPU.name, choices.saved[FINGERPRINT])
+    }
+
+    private companion object {
+        const val FINGERPRINT = "model-fingerprint"
+    }
+}
@@ -0,0 +1,215 @@
+package com.example.hybridmind.data
+
+import com.example.hybridmind.data.InferenceScheduler.Lane
+import com.example.hybridmind.data.InferenceScheduler.Priority
+import kotlinx.coroutines.CompletableDeferred
+import kotlinx.coroutines.CoroutineScope
+import kotlinx.coroutines.Job
+import kotlinx.coroutines.async
+import kotlinx.coroutines.awaitCancellation
+import kotlinx.coroutines.flow.first
+import kotlinx.coroutines.flow.flow
+import kotlinx.coroutines.flow.toList
+import kotlinx.coroutines.launch
+import kotlinx.coroutines.runBlocking
+import kotlinx.coroutines.yield
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+
+// runBlocking runs every coroutine on one thread, so a yield() lets each launched coroutine run
+// up to its next suspension and the interleavings below are deterministic
+class InferenceSchedulerTest {
+
+    @Test
+    fun waitersAreGrantedByPriorityThenInArrivalOrder() = runBlocking {
+        val scheduler = InferenceScheduler(this)
+        val gate = CompletableDeferred<Unit>()
+        val order = mutableListOf<String>()
+
+        val holder = launch { scheduler.withLane(Lane.LOCAL, Priority.INTERACTIVE) { gate.await() } }
+        yield()
+        val waiters = listOf(
+            "background-1" to Priority.BACKGROUND,
+            "interactive-1" to Priority.INTERACTIVE,
+            "background-2" to Priority.BACKGROUND,
+            "interactive-2" to Priority.INTERACTIVE
+        ).map { (name, priority) ->
+            launch { scheduler.withLane(Lane.LOCAL, priority) { order += name } }
+        }
+        yield()
+        assertTrue(order.isEmpty())
+
+        gate.complete(Unit)
+        holder.join()
+        waiters.forEach { it.join() }
+
+        assertEquals(listOf("interactive-1", "interactive-2", "background-1", "background-2"), order)
+    }
+
+    @Test
+    fun lanesAreIndependent() = runBlocking {
+        val scheduler = InferenceScheduler(this)
+        val gate = CompletableDeferred<Unit>()
+        var geminiRan = false
+
+        val holder = launch { scheduler.withLane(Lane.LOCAL, Priority.INTERACTIVE) { gate.await() } }
+        yield()
+        scheduler.withLane(Lane.GEMINI, Priority.BACKGROUND) { geminiRan = true }
+
+        assertTrue(geminiRan)
+        gate.complete(Unit)
+        holder.join()
+    }
+
+    @Test
+    fun cancelWhileWaitingLeavesTheQueue() = runBlocking {
+        val scheduler = InferenceScheduler(this)
+        val gate = CompletableDeferred<Unit>()
+        var cancelledRan = false
+        val order = mutableListOf<String>()
+
+        val holder = launch { scheduler.withLane(Lane.LOCAL, Priority.INTERACTIVE) { gate.await() } }
+        yield()
+        val cancelled = launch { scheduler.withLane(Lane.LOCAL, Priority.INTERACTIVE) { cancelledRan = true } }
+        val next = launch { scheduler.withLane(Lane.LOCAL, Priority.BACKGROUND) { order += "next" } }
+        yield()
+
+        cancelled.cancel()
+        cancelled.join()
+        gate.complete(Unit)
+        holder.join()
+        next.join()
+
+        assertFalse(cancelledRan)
+        assertEquals(listOf("next"), order)
+        // The lane is free again
+        scheduler.withLane(Lane.LOCAL, Priority.BACKGROUND) { order += "after" }
+        assertEquals(listOf("next", "after"), order)
+    }
+
+    @Test
+    fun cancelAfterGrantHandsTheLaneOn() = runBlocking {
+        val scheduler = InferenceScheduler(this)
+        val gate = CompletableDeferred<Unit>()
+        var grantedRan = false
+        var nextRan = false
+
+        val holder = launch { scheduler.withLane(Lane.LOCAL, Priority.INTERACTIVE) { gate.await() } }
+        yield()
+        val granted = launch { scheduler.withLane(Lane.LOCAL, Priority.INTERACTIVE) { grantedRan = true } }
+        val next = launch { scheduler.withLane(Lane.LOCAL, Priority.INTERACTIVE) { nextRan = true } }
+        yield()
+
+        // The holder releases and grants the lane to `granted`, which is cancelled before it resumes
+        gate.complete(Unit)
+        yield()
+        assertTrue(holder.isCompleted)
+        granted.cancel()
+
+        granted.join()
+        next.join()
+        assertFalse(grantedRan)
+        assertTrue(nextRan)
+        var freeRan = false
+        scheduler.withLane(Lane.LOCAL, Priority.BACKGROUND) { freeRan = true }
+        assertTrue(freeRan)
+    }
+
+    @Test
+    fun scheduleReleasesTheLaneWhenTheFlowFails() = runBlocking {
+        val scheduler = InferenceScheduler(this)
+        val failing = scheduler.schedule(Lane.LOCAL, Priority.INTERACTIVE, flow<Int> { throw IllegalStateException("boom") })
+
+        val error = runCatching { failing.toList() }.exceptionOrNull()
+
+        assertTrue(error is IllegalStateException)
+        var ran = false
+        scheduler.withLane(Lane.LOCAL, Priority.INTERACTIVE) { ran = true }
+        assertTrue(ran)
+    }
+
+    @Test
+    fun dedupeSharesOneRunAndReplaysToLateJoiners() = dedupeTest { scheduler ->
+        val gate = CompletableDeferred<Unit>()
+        var starts = 0
+        val upstream = flow {
+            starts++
+            emit(1)
+            gate.await()
+            emit(2)
+        }
+
+        val first = async { scheduler.dedupe("key", upstream).toList() }
+        yield()
+        yield()
+        val second = async { scheduler.dedupe("key", upstream).toList() }
+        yield()
+        gate.complete(Unit)
+
+        assertEquals(listOf(1, 2), first.await())
+        assertEquals(listOf(1, 2), second.await())
+        assertEquals(1, starts)
+    }
+
+    @Test
+    fun dedupeStartsAgainOnceTheRunCompleted() = dedupeTest { scheduler ->
+        var starts = 0
+        val upstream = flow {
+            starts++
+            emit(starts)
+        }
+
+        assertEquals(listOf(1), scheduler.dedupe("key", upstream).toList())
+        yield()
+        assertEquals(listOf(2), scheduler.dedupe("key", upstream).toList())
+        assertEquals(2, starts)
+    }
+
+    @Test
+    fun dedupeCancelsTheRunWhenTheLastCollectorLeaves() = dedupeTest { scheduler ->
+        var starts = 0
+        var upstreamCancelled = false
+        val upstream = flow {
+            starts++
+            try {
+                emit(starts)
+                awaitCancellation()
+            } finally {
+                upstreamCancelled = true
+            }
+        }
+
+        // first() stops collecting after one item, so its collector is the last to leave
+        assertEquals(1, scheduler.dedupe("key", upstream).first())
+        while (!upstreamCancelled) yield()
+
+        // The key is free again, so the next caller gets a fresh run rather than the old replay
+        assertEquals(2, scheduler.dedupe("key", upstream).first())
+    }
+
+    @Test
+    fun dedupeRethrowsUpstreamFailures() = dedupeTest { scheduler ->
+        val upstream = flow {
+            emit(1)
+            throw IllegalStateException("boom")
+        }
+        val received = mutableListOf<Int>()
+
+        val error = runCatching { scheduler.dedupe("key", upstream).collect { received += it } }.exceptionOrNull()
+
+        assertEquals(listOf(1), received)
+        assertTrue(error is IllegalStateException)
+    }
+
+    // shareIn keeps a sharing coroutine alive for its scope, so dedupe gets a scope the test can end
+    private fun dedupeTest(block: suspend CoroutineScope.(InferenceScheduler) -> Unit) = runBlocking {
+        val sharing = Job()
+        try {
+            block(InferenceScheduler(CoroutineScope(coroutineContext + sharing)))
+        } finally {
+            sharing.cancel()
+        }
+    }
+}